@@ -1,10 +1,13 @@
 package eu.h2020.symbiote.bartering;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.sleuth.sampler.AlwaysSampler;
 import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 /**
  * Spring Boot Application class for Bartering and Trading (BTM) component.
@@ -14,6 +17,7 @@ import org.springframework.context.annotation.Bean;
  * @author Mikolaj Dobski (PSNC)
  */
 @EnableDiscoveryClient
+@EnableScheduling
 @SpringBootApplication(scanBasePackages = "eu.h2020.symbiote.bartering")
 public class BarteringTradingManager {
 
@@ -27,4 +31,16 @@ public class BarteringTradingManager {
         return new AlwaysSampler();
     }
 
+    /**
+     * Scheduler of the periodic tasks, with at least two threads, so that a long running task
+     * (e.g. the throttled cleanup of the consumed coupons) doesn't hold the others (e.g. the expiry of the coupons).
+     */
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler(@Value("${btm.scheduler.poolSize:4}") int poolSize) {
+        ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+        taskScheduler.setPoolSize(Math.max(2, poolSize));
+        taskScheduler.setThreadNamePrefix("btm-scheduler-");
+        return taskScheduler;
+    }
+
 }
@@ -0,0 +1,46 @@
+package eu.h2020.symbiote.bartering.commons;
+
+/**
+ * Result of the registration of a single coupon in the Core BTM, returned by the batch registration
+ * in the order of the registered coupons.
+ */
+public class CouponRegistrationResult {
+
+    private boolean registered;
+    private String errorMessage;
+
+    public CouponRegistrationResult() {
+    }
+
+    public CouponRegistrationResult(boolean registered, String errorMessage) {
+        this.registered = registered;
+        this.errorMessage = errorMessage;
+    }
+
+    public static CouponRegistrationResult registered() {
+        return new CouponRegistrationResult(true, null);
+    }
+
+    public static CouponRegistrationResult rejected(String errorMessage) {
+        return new CouponRegistrationResult(false, errorMessage);
+    }
+
+    public boolean isRegistered() {
+        return registered;
+    }
+
+    public void setRegistered(boolean registered) {
+        this.registered = registered;
+    }
+
+    /**
+     * @return reason why the coupon was not registered, null if it was
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+}
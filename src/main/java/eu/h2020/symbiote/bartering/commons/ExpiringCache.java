@@ -0,0 +1,155 @@
+package eu.h2020.symbiote.bartering.commons;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Bounded, least recently used cache with time based expiry of its entries.
+ * Collects hit, miss and eviction statistics and is safe to be used by multiple threads.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the cached values
+ */
+public class ExpiringCache<K, V> {
+
+    private final int maximumSize;
+    private final long timeToLive;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maximumSize maximum number of entries kept, the least recently used ones are evicted first.
+     *                    Zero or less disables the cache.
+     * @param timeToLive  default time (in ms) after which an entry expires
+     */
+    public ExpiringCache(int maximumSize, long timeToLive) {
+        this.maximumSize = maximumSize;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > ExpiringCache.this.maximumSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return cached value or null if it is absent or expired
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            evictions++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, System.currentTimeMillis() + timeToLive);
+    }
+
+    /**
+     * @param expiresAt timestamp (in ms) after which the entry is no longer returned
+     */
+    public synchronized void put(K key, V value, long expiresAt) {
+        if (maximumSize <= 0)
+            return;
+        entries.put(key, new Entry<>(value, expiresAt));
+    }
+
+    /**
+     * Caches the value only if no invalidation happened since the given generation was read.
+     * Prevents caching values loaded concurrently with a write that invalidated them.
+     *
+     * @param generation obtained using {@link #getGeneration()} before the value was loaded
+     */
+    public synchronized void putIfNotInvalidated(K key, V value, long generation) {
+        if (this.generation == generation)
+            put(key, value);
+    }
+
+    /**
+     * Atomically replaces the value of an already cached entry, keeping its expiry.
+     *
+     * @param update function returning the new value, or null to remove the entry
+     */
+    public synchronized void updateIfPresent(K key, UnaryOperator<V> update) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null)
+            return;
+        V value = update.apply(entry.value);
+        if (value == null)
+            entries.remove(key);
+        else
+            entries.put(key, new Entry<>(value, entry.expiresAt));
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        entries.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @param prefix prepended to the names of the statistics
+     * @return hits, misses, evictions and size of the cache
+     */
+    public synchronized Map<String, Long> getStatistics(String prefix) {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put(prefix + ".hits", hits);
+        statistics.put(prefix + ".misses", misses);
+        statistics.put(prefix + ".evictions", evictions);
+        statistics.put(prefix + ".size", (long) entries.size());
+        return statistics;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
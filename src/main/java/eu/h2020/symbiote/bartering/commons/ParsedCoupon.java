@@ -0,0 +1,118 @@
+package eu.h2020.symbiote.bartering.commons;
+
+import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
+import eu.h2020.symbiote.security.commons.Coupon;
+import eu.h2020.symbiote.security.commons.SecurityConstants;
+import eu.h2020.symbiote.security.commons.exceptions.custom.ValidationException;
+import io.jsonwebtoken.Claims;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Coupon with its claims parsed once, when it is received by the Core BTM, and then passed
+ * through the registration, validation, consumption and revocation instead of the coupon string.
+ */
+public class ParsedCoupon {
+
+    private static final String CLAIM_NAME_ISSUER_PUBLIC_KEY = "ipk";
+
+    private final String couponString;
+    private final String id;
+    private final String issuer;
+    private final String issuerPublicKey;
+    private final String federationId;
+    private final Coupon.Type type;
+    private final String validity;
+    private final String registeredCouponId;
+    private final byte[] couponDigest;
+
+    public ParsedCoupon(Coupon coupon) {
+        Claims claims = coupon.getClaims();
+        this.couponString = coupon.getCoupon();
+        this.id = claims.getId();
+        this.issuer = claims.getIssuer();
+        this.issuerPublicKey = claims.get(CLAIM_NAME_ISSUER_PUBLIC_KEY, String.class);
+        this.federationId = claims.get(SecurityConstants.CLAIM_NAME_FEDERATION_ID, String.class);
+        this.type = coupon.getType();
+        Object val = claims.get(SecurityConstants.CLAIM_NAME_COUPON_VALIDITY);
+        this.validity = val == null ? null : val.toString();
+        this.registeredCouponId = AccountingCoupon.createIdFromNotification(id, issuer);
+        this.couponDigest = digest(couponString);
+    }
+
+    /**
+     * @param couponString compact JWS of the coupon
+     * @return the coupon with its claims parsed
+     * @throws ValidationException if the coupon could not be parsed
+     */
+    public static ParsedCoupon parse(String couponString) throws
+            ValidationException {
+        return new ParsedCoupon(new Coupon(couponString));
+    }
+
+    /**
+     * @param couponString compact JWS of the coupon
+     * @return SHA-256 digest used to compare coupons against the registered ones
+     */
+    public static byte[] digest(String couponString) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(couponString.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is guaranteed to be available in every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the 'val' claim is a number greater than zero
+     */
+    public boolean hasValidity() {
+        return getMaximumAllowedUsage() > 0;
+    }
+
+    /**
+     * @return number of discrete usages or validity period of the coupon, 0 if the 'val' claim is missing or malformed
+     */
+    public long getMaximumAllowedUsage() {
+        try {
+            return validity == null ? 0 : Long.parseLong(validity);
+        } catch (NumberFormatException e) {
+            // such coupon could not have been registered
+            return 0;
+        }
+    }
+
+    public String getCouponString() {
+        return couponString;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public String getIssuerPublicKey() {
+        return issuerPublicKey;
+    }
+
+    public String getFederationId() {
+        return federationId;
+    }
+
+    public Coupon.Type getType() {
+        return type;
+    }
+
+    public String getRegisteredCouponId() {
+        return registeredCouponId;
+    }
+
+    public byte[] getCouponDigest() {
+        return couponDigest;
+    }
+}
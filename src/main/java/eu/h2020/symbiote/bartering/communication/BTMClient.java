@@ -5,9 +5,11 @@ import eu.h2020.symbiote.bartering.communication.interfaces.IFeignBTMClient;
 import eu.h2020.symbiote.security.commons.exceptions.custom.BTMException;
 import eu.h2020.symbiote.security.communication.ApacheCommonsLogger4Feign;
 import eu.h2020.symbiote.security.communication.payloads.CouponRequest;
+import feign.Client;
 import feign.Feign;
 import feign.FeignException;
 import feign.Logger;
+import feign.Request;
 import feign.jackson.JacksonDecoder;
 import feign.jackson.JacksonEncoder;
 import org.apache.commons.logging.Log;
@@ -40,18 +42,34 @@ public class BTMClient implements IBTMClient {
      */
     public BTMClient(String serverAddress, Logger logger) {
         this.serverAddress = serverAddress;
-        this.feignClient = getJsonClient(logger);
+        this.feignClient = getJsonClient(logger, Logger.Level.FULL, new Request.Options());
+    }
+
+    /**
+     * Client meant to be reused for many requests to the same server, so that its proxy is built once.
+     * It uses the JDK HTTP client, which doesn't pool the connections itself, idle connections are only reused
+     * through the JVM-wide keep-alive cache of HttpURLConnection (at most http.maxConnections per server).
+     *
+     * @param serverAddress of the Bartering Trading Module server the client wants to interact with.
+     * @param logLevel      feign logging level
+     * @param options       connect and read timeouts
+     */
+    public BTMClient(String serverAddress, Logger.Level logLevel, Request.Options options) {
+        this.serverAddress = serverAddress;
+        this.feignClient = getJsonClient(new ApacheCommonsLogger4Feign(logger), logLevel, options);
     }
 
     /**
      * @return Instance of feign client with all necessary parameters set
      */
-    private IFeignBTMClient getJsonClient(Logger logger) {
+    private IFeignBTMClient getJsonClient(Logger logger, Logger.Level logLevel, Request.Options options) {
         return Feign.builder()
+                .client(new Client.Default(null, null))
                 .encoder(new JacksonEncoder())
                 .decoder(new JacksonDecoder())
                 .logger(logger)
-                .logLevel(Logger.Level.FULL)
+                .logLevel(logLevel)
+                .options(options)
                 .target(IFeignBTMClient.class, serverAddress);
     }
 
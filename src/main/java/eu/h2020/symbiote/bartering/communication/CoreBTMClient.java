@@ -1,6 +1,7 @@
 package eu.h2020.symbiote.bartering.communication;
 
 import com.google.gson.Gson;
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
 import eu.h2020.symbiote.bartering.communication.interfaces.ICoreBTMClient;
 import eu.h2020.symbiote.bartering.communication.interfaces.IFeignCoreBTMClient;
 import eu.h2020.symbiote.barteringAndTrading.FilterRequest;
@@ -63,6 +64,24 @@ public class CoreBTMClient implements ICoreBTMClient {
         }
     }
 
+    public List<CouponRegistrationResult> registerCoupons(List<String> couponStrings) throws
+            InvalidArgumentsException,
+            WrongCredentialsException,
+            BTMException {
+        try {
+            return this.feignCoreBTMClient.registerCoupons(couponStrings);
+        } catch (FeignException e) {
+            switch (e.status()) {
+                case 400:
+                    throw new InvalidArgumentsException(e.getMessage());
+                case 401:
+                    throw new WrongCredentialsException(e.getMessage());
+                default:
+                    throw new BTMException(e.getMessage()); //500
+            }
+        }
+    }
+
     public CouponValidity isCouponValid(String couponString) throws
             InvalidArgumentsException,
             WrongCredentialsException,
@@ -81,6 +100,24 @@ public class CoreBTMClient implements ICoreBTMClient {
         }
     }
 
+    public List<CouponValidity> areCouponsValid(List<String> couponStrings) throws
+            InvalidArgumentsException,
+            WrongCredentialsException,
+            BTMException {
+        try {
+            return this.feignCoreBTMClient.areCouponsValid(couponStrings);
+        } catch (FeignException e) {
+            switch (e.status()) {
+                case 400:
+                    throw new InvalidArgumentsException(e.getMessage());
+                case 401:
+                    throw new WrongCredentialsException(e.getMessage());
+                default:
+                    throw new BTMException(e.getMessage()); //500
+            }
+        }
+    }
+
     public boolean consumeCoupon(String couponString) throws
             InvalidArgumentsException,
             WrongCredentialsException, BTMException {
@@ -1,5 +1,6 @@
 package eu.h2020.symbiote.bartering.communication.interfaces;
 
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
 import eu.h2020.symbiote.barteringAndTrading.FilterRequest;
 import eu.h2020.symbiote.barteringAndTrading.FilterResponse;
 import eu.h2020.symbiote.security.commons.exceptions.custom.BTMException;
@@ -25,6 +26,20 @@ public interface ICoreBTMClient {
      */
     boolean registerCoupon(String couponString);
 
+    /**
+     * Registers coupons in the Core Bartering And Trading Module using a single request
+     *
+     * @param couponStrings coupons to register
+     * @return result of the registration of each coupon, in the order of the provided coupons
+     * @throws InvalidArgumentsException Provided request was malformed
+     * @throws WrongCredentialsException Component does not have permission to interact with Core Bartering And Trading Module
+     * @throws BTMException              Internal server error occured
+     */
+    List<CouponRegistrationResult> registerCoupons(List<String> couponStrings) throws
+            InvalidArgumentsException,
+            WrongCredentialsException,
+            BTMException;
+
     /**
      * Validates, if provided coupon is registered in Core and can be still used
      *
@@ -39,6 +54,20 @@ public interface ICoreBTMClient {
             WrongCredentialsException,
             BTMException;
 
+    /**
+     * Validates, if provided coupons are registered in Core and can be still used, using a single request
+     *
+     * @param couponStrings coupons for verification
+     * @return CouponValidity of each coupon, in the order of the provided coupons
+     * @throws InvalidArgumentsException Provided request was malformed
+     * @throws WrongCredentialsException Component does not have permission to interact with Core Bartering And Trading Module
+     * @throws BTMException              Internal server error occured
+     */
+    List<CouponValidity> areCouponsValid(List<String> couponStrings) throws
+            InvalidArgumentsException,
+            WrongCredentialsException,
+            BTMException;
+
     /**
      * Consume coupon in the Core Bartering And Trading Module for granting access to federated resource
      *
@@ -1,6 +1,7 @@
 package eu.h2020.symbiote.bartering.communication.interfaces;
 
 
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
 import eu.h2020.symbiote.barteringAndTrading.FilterRequest;
 import eu.h2020.symbiote.barteringAndTrading.FilterResponse;
 import eu.h2020.symbiote.security.commons.SecurityConstants;
@@ -30,11 +31,19 @@ public interface IFeignCoreBTMClient {
             SecurityConstants.COUPON_HEADER_NAME + ": " + "{couponString}"})
     CouponValidity isCouponValid(@Param("couponString") String couponString);
 
+    @RequestLine("POST " + SecurityConstants.BTM_IS_COUPON_VALID + "/batch")
+    @Headers({"Content-Type: application/json", "Accept: application/json"})
+    List<CouponValidity> areCouponsValid(List<String> couponStrings);
+
     @RequestLine("POST " + SecurityConstants.BTM_REGISTER_COUPON)
     @Headers({"Content-Type: text/plain", "Accept: text/plain",
             SecurityConstants.COUPON_HEADER_NAME + ": " + "{couponString}"})
     Response registerCoupon(@Param("couponString") String couponString);
 
+    @RequestLine("POST " + SecurityConstants.BTM_REGISTER_COUPON + "/batch")
+    @Headers({"Content-Type: application/json", "Accept: application/json"})
+    List<CouponRegistrationResult> registerCoupons(List<String> couponStrings);
+
     //not implemented, interface duplicated in BTMComponentClient in SymbIoTeSecurity
     @RequestLine("POST " + SecurityConstants.BTM_REVOKE_COUPON)
     @Headers("Content-Type: application/json")
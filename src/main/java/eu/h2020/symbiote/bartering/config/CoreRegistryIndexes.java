@@ -0,0 +1,118 @@
+package eu.h2020.symbiote.bartering.config;
+
+import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Manages the indexes of the Core BTM coupons registry, each of them serving one of its query paths.
+ * Indexes are created at startup (unless disabled) and verified afterwards, optionally failing the startup
+ * if any of them is missing.
+ */
+@Profile("core")
+@Component
+public class CoreRegistryIndexes {
+
+    private static Log log = LogFactory.getLog(CoreRegistryIndexes.class);
+
+    /**
+     * required indexes of the registry: name -> indexed fields
+     */
+    private static final Map<String, List<String>> REQUIRED_INDEXES = new LinkedHashMap<>();
+    /**
+     * TTL index removing the coupons once their retention passes (see {@link eu.h2020.symbiote.bartering.services.helpers.CouponRetentionPolicy})
+     */
+    private static final String EXPIRY_INDEX = "expireAt";
+
+    static {
+        // usage report of the issuer (and findByIssuer, findAllByIssuer): ordered by the coupon id,
+        // the usage period is filtered on the index keys
+        REQUIRED_INDEXES.put("issuer_id_lastConsumption_firstUse", Arrays.asList(
+                AccountingCoupon.FIELD_ISSUER,
+                AccountingCoupon.FIELD_ID,
+                AccountingCoupon.FIELD_LAST_CONSUMPTION_TIMESTAMP,
+                AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP));
+        // usage report of the issuer in the federation, the same way
+        REQUIRED_INDEXES.put("issuer_federationId_id_lastConsumption_firstUse", Arrays.asList(
+                AccountingCoupon.FIELD_ISSUER,
+                AccountingCoupon.FIELD_FEDERATION_ID,
+                AccountingCoupon.FIELD_ID,
+                AccountingCoupon.FIELD_LAST_CONSUMPTION_TIMESTAMP,
+                AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP));
+        // cleanup of the coupons consumed before the timestamp
+        REQUIRED_INDEXES.put("status_lastConsumption", Arrays.asList(
+                AccountingCoupon.FIELD_STATUS,
+                AccountingCoupon.FIELD_LAST_CONSUMPTION_TIMESTAMP));
+        // roll up of the usage buckets of the coupons consumed since the previous run and used before the cutoff
+        REQUIRED_INDEXES.put("lastConsumption_firstUse", Arrays.asList(
+                AccountingCoupon.FIELD_LAST_CONSUMPTION_TIMESTAMP,
+                AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP));
+        REQUIRED_INDEXES.put(EXPIRY_INDEX, Collections.singletonList(
+                AccountingCoupon.FIELD_EXPIRE_AT));
+    }
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean createIndexes;
+    private final boolean failOnMissing;
+
+    @Autowired
+    public CoreRegistryIndexes(MongoTemplate mongoTemplate,
+                               @Value("${btm.core.indexes.create:true}") boolean createIndexes,
+                               @Value("${btm.core.indexes.failOnMissing:false}") boolean failOnMissing) {
+        this.mongoTemplate = mongoTemplate;
+        this.createIndexes = createIndexes;
+        this.failOnMissing = failOnMissing;
+    }
+
+    @PostConstruct
+    public void bootstrap() {
+        IndexOperations indexOperations = mongoTemplate.indexOps(AccountingCoupon.class);
+        if (createIndexes) {
+            REQUIRED_INDEXES.forEach((name, fields) -> {
+                Index index = new Index().named(name).background();
+                fields.forEach(field -> index.on(field, Sort.Direction.ASC));
+                if (name.equals(EXPIRY_INDEX)) {
+                    // documents are removed as soon as the time they expire at passes
+                    index.expire(0);
+                }
+                indexOperations.ensureIndex(index);
+            });
+        }
+        Map<String, Boolean> report = verify();
+        report.forEach((name, present) -> log.info("Core registry index " + name + ": " + (present ? "present" : "MISSING")));
+        if (failOnMissing && report.containsValue(false)) {
+            throw new IllegalStateException("Required indexes of the Core BTM registry are missing: "
+                    + report.entrySet().stream()
+                    .filter(entry -> !entry.getValue())
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * @return required index name -> true if an index on the same fields exists in the registry
+     */
+    public Map<String, Boolean> verify() {
+        Set<List<String>> existingIndexes = mongoTemplate.indexOps(AccountingCoupon.class).getIndexInfo().stream()
+                .map(IndexInfo::getIndexFields)
+                .map(indexFields -> indexFields.stream().map(IndexField::getKey).collect(Collectors.toList()))
+                .collect(Collectors.toSet());
+        Map<String, Boolean> report = new LinkedHashMap<>();
+        REQUIRED_INDEXES.forEach((name, fields) -> report.put(name, existingIndexes.contains(fields)));
+        return report;
+    }
+}
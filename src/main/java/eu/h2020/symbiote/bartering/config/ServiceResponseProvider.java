@@ -0,0 +1,76 @@
+package eu.h2020.symbiote.bartering.config;
+
+import eu.h2020.symbiote.security.commons.exceptions.custom.SecurityHandlerException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides the signed service response attached to the responses of this component.
+ * A generated service response is reused for the configured window, so that it is not signed for every response.
+ * The window has to stay well below the time the clients accept the service response for.
+ */
+@Component
+public class ServiceResponseProvider {
+
+    private final ComponentSecurityHandlerProvider componentSecurityHandlerProvider;
+    private final long reuseWindow;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile ServiceResponse serviceResponse;
+
+    @Autowired
+    public ServiceResponseProvider(ComponentSecurityHandlerProvider componentSecurityHandlerProvider,
+                                   @Value("${btm.serviceResponse.reuseWindow:5000}") long reuseWindow) {
+        this.componentSecurityHandlerProvider = componentSecurityHandlerProvider;
+        this.reuseWindow = reuseWindow;
+    }
+
+    /**
+     * @return service response generated within the reuse window or a newly generated one
+     * @throws SecurityHandlerException if the service response could not be generated
+     */
+    public String getServiceResponse() throws
+            SecurityHandlerException {
+        long now = System.currentTimeMillis();
+        ServiceResponse current = serviceResponse;
+        if (current != null && now < current.expiresAt) {
+            hits.incrementAndGet();
+            return current.value;
+        }
+        misses.incrementAndGet();
+        String value = componentSecurityHandlerProvider.getComponentSecurityHandler().generateServiceResponse();
+        // concurrent misses just generate a few more responses
+        if (reuseWindow > 0) {
+            serviceResponse = new ServiceResponse(value, now + reuseWindow);
+        }
+        return value;
+    }
+
+    /**
+     * @return hits, misses and hit rate (in percent) of the reused service responses
+     */
+    public Map<String, Long> getStatistics() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("serviceResponse.hits", hitCount);
+        statistics.put("serviceResponse.misses", missCount);
+        statistics.put("serviceResponse.hitRate", hitCount + missCount == 0 ? 0 : hitCount * 100 / (hitCount + missCount));
+        return statistics;
+    }
+
+    private static class ServiceResponse {
+        private final String value;
+        private final long expiresAt;
+
+        private ServiceResponse(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package eu.h2020.symbiote.bartering.listeners.amqp;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
+import eu.h2020.symbiote.model.mim.Federation;
+import eu.h2020.symbiote.security.communication.payloads.BarteredAccessRequest;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decodes the JSON bodies of the consumed messages straight from their bytes and encodes the published ones.
+ * The readers and writers are immutable and thread-safe, so they are shared by all the listeners and publishers.
+ */
+@Profile("platform")
+@Component
+public class AmqpMessageCodec {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final ObjectReader barteredAccessRequestReader = OBJECT_MAPPER.readerFor(BarteredAccessRequest.class);
+    private final ObjectReader federationReader = OBJECT_MAPPER.readerFor(Federation.class);
+    private final ObjectReader trustEntriesReader = OBJECT_MAPPER.readerFor(new TypeReference<List<TrustEntry>>() {
+    });
+    private final ObjectWriter trustEntriesWriter = OBJECT_MAPPER.writerFor(new TypeReference<List<TrustEntry>>() {
+    });
+
+    public BarteredAccessRequest readBarteredAccessRequest(byte[] body) throws
+            IOException {
+        return barteredAccessRequestReader.readValue(body);
+    }
+
+    public Federation readFederation(byte[] body) throws
+            IOException {
+        return federationReader.readValue(body);
+    }
+
+    public List<TrustEntry> readTrustEntries(byte[] body) throws
+            IOException {
+        return trustEntriesReader.readValue(body);
+    }
+
+    public String writeTrustEntries(List<TrustEntry> trustEntries) throws
+            JsonProcessingException {
+        return trustEntriesWriter.writeValueAsString(trustEntries);
+    }
+}
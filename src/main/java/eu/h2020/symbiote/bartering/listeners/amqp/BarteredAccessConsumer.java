@@ -1,20 +1,34 @@
 package eu.h2020.symbiote.bartering.listeners.amqp;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.h2020.symbiote.bartering.services.BarteredAccessManagementService;
 import eu.h2020.symbiote.security.commons.exceptions.custom.*;
 import eu.h2020.symbiote.security.communication.payloads.BarteredAccessRequest;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.annotation.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Consumes the bartered access requests. By default the request is authorized on the listener thread
+ * and the result is returned as the RPC reply. With the asynchronous pipeline enabled, the authorization
+ * (including its remote BTM calls) runs on a dedicated bounded executor and the result is sent to the
+ * request's replyTo queue once it is done, releasing the listener thread immediately.
+ * When the executor is saturated, requests are authorized on the listener thread, slowing down the consumption.
+ */
 @Profile("platform")
 @Component
 public class BarteredAccessConsumer {
@@ -27,8 +41,45 @@ public class BarteredAccessConsumer {
 	@Autowired
 	AmqpTemplate amqpTemplate;
 
+	@Autowired
+	private AmqpMessageCodec amqpMessageCodec;
+
+	@Value("${btm.barteredAccess.async.enabled:false}")
+	private boolean asyncEnabled;
+
+	@Value("${btm.barteredAccess.async.threads:16}")
+	private int asyncThreads;
+
+	@Value("${btm.barteredAccess.async.queueCapacity:256}")
+	private int asyncQueueCapacity;
+
+	private ThreadPoolExecutor asyncExecutor;
+
+	@PostConstruct
+	public void startAsyncExecutor() {
+		if (!asyncEnabled)
+			return;
+		AtomicInteger threadNumber = new AtomicInteger();
+		asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads,
+				60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(asyncQueueCapacity),
+				runnable -> {
+					Thread thread = new Thread(runnable, "bartered-access-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		asyncExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	@PreDestroy
+	public void shutdownAsyncExecutor() {
+		if (asyncExecutor != null)
+			asyncExecutor.shutdown();
+	}
+
 	@RabbitHandler
-	@RabbitListener(bindings = @QueueBinding(
+	@RabbitListener(containerFactory = RabbitHelper.BARTERED_ACCESS_CONTAINER_FACTORY, bindings = @QueueBinding(
 			value = @Queue,
 			exchange = @Exchange(
 					value = "${rabbit.exchange.bartered.access}",
@@ -37,13 +88,39 @@ public class BarteredAccessConsumer {
 					internal = "${rabbit.exchange.aam.internal}",
 					type = "topic"),
 			key = "${rabbit.routingKey.bartered.access}"))
-	public String authorizeBarteredAccess(String message) {
+	public String authorizeBarteredAccess(Message message) {
+		byte[] request = message.getBody();
+		String replyTo = message.getMessageProperties().getReplyTo();
+		if (asyncExecutor == null || replyTo == null) {
+			return authorize(request);
+		}
+		CompletableFuture.supplyAsync(() -> authorize(request), asyncExecutor)
+				.exceptionally(e -> {
+					log.error("Bartered access authorization failed", e);
+					return String.valueOf(HttpStatus.INTERNAL_SERVER_ERROR) + " : " + e.getMessage();
+				})
+				.thenAccept(result -> reply(message.getMessageProperties(), result));
+		// the reply is sent once the authorization is done
+		return null;
+	}
+
+	private void reply(MessageProperties requestProperties, String result) {
+		MessageProperties replyProperties = new MessageProperties();
+		replyProperties.setCorrelationId(requestProperties.getCorrelationId());
+		replyProperties.setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN);
+		replyProperties.setContentEncoding(StandardCharsets.UTF_8.name());
+		try {
+			amqpTemplate.send("", requestProperties.getReplyTo(), new Message(result.getBytes(StandardCharsets.UTF_8), replyProperties));
+		} catch (RuntimeException e) {
+			log.error("Couldn't send the bartered access reply to " + requestProperties.getReplyTo(), e);
+		}
+	}
+
+	private String authorize(byte[] message) {
 
 		String result;
 		try {
-			ObjectMapper om = new ObjectMapper();
-			BarteredAccessRequest barteredAccessRequest;
-			barteredAccessRequest = om.readValue(message, BarteredAccessRequest.class);
+			BarteredAccessRequest barteredAccessRequest = amqpMessageCodec.readBarteredAccessRequest(message);
 
 			/*checking request*/
 			if (barteredAccessRequest.getClientPlatform() == null ||
@@ -1,6 +1,5 @@
 package eu.h2020.symbiote.bartering.listeners.amqp;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.h2020.symbiote.bartering.repositories.FederationsRepository;
 import eu.h2020.symbiote.model.mim.Federation;
 import eu.h2020.symbiote.model.mim.FederationMember;
@@ -16,7 +15,7 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.stream.Collectors;
 
 @Profile("platform")
@@ -26,6 +25,8 @@ public class FederationManagementRequestConsumer {
     private static Log log = LogFactory.getLog(FederationManagementRequestConsumer.class);
     @Autowired
     private FederationsRepository federationsRepository;
+    @Autowired
+    private AmqpMessageCodec amqpMessageCodec;
 
     private static boolean isFederationConsistent(Federation federation) {
         //check of federation consistency - size of members should be the same as size of set of members' platformIds
@@ -35,7 +36,7 @@ public class FederationManagementRequestConsumer {
                 .size();
     }
 
-    @RabbitListener(bindings = @QueueBinding(
+    @RabbitListener(containerFactory = RabbitHelper.FEDERATION_CONTAINER_FACTORY, bindings = @QueueBinding(
             value = @Queue,
             exchange = @Exchange(
                     value = "${rabbit.exchange.federation}",
@@ -46,14 +47,12 @@ public class FederationManagementRequestConsumer {
                     type = "${rabbit.exchange.federation.type}"),
             key = "${rabbit.routingKey.federation.created}"))
     public void federationCreate(byte[] body) {
-        String message = new String(body, Charset.forName("UTF-8"));
-
-        log.debug("[x] Received Federation to create: " + message);
-        ObjectMapper om = new ObjectMapper();
+        if (log.isDebugEnabled())
+            log.debug("[x] Received Federation to create: " + new String(body, StandardCharsets.UTF_8));
 
         Federation federation;
         try {
-            federation = om.readValue(message, Federation.class);
+            federation = amqpMessageCodec.readFederation(body);
             if (federation.getId() == null
                     || federation.getMembers() == null
                     || federation.getId().isEmpty())
@@ -71,7 +70,7 @@ public class FederationManagementRequestConsumer {
         }
     }
 
-    @RabbitListener(bindings = @QueueBinding(
+    @RabbitListener(containerFactory = RabbitHelper.FEDERATION_CONTAINER_FACTORY, bindings = @QueueBinding(
             value = @Queue,
             exchange = @Exchange(
                     value = "${rabbit.exchange.federation}",
@@ -82,7 +81,7 @@ public class FederationManagementRequestConsumer {
                     type = "${rabbit.exchange.federation.type}"),
             key = "${rabbit.routingKey.federation.deleted}"))
     public void federationDelete(byte[] body) {
-        String federationId = new String(body, Charset.forName("UTF-8"));
+        String federationId = new String(body, StandardCharsets.UTF_8);
         log.debug("[x] Received Federation Id to delete: " + federationId);
 
         try {
@@ -100,7 +99,7 @@ public class FederationManagementRequestConsumer {
         }
     }
 
-    @RabbitListener(bindings = @QueueBinding(
+    @RabbitListener(containerFactory = RabbitHelper.FEDERATION_CONTAINER_FACTORY, bindings = @QueueBinding(
             value = @Queue,
             exchange = @Exchange(
                     value = "${rabbit.exchange.federation}",
@@ -111,13 +110,12 @@ public class FederationManagementRequestConsumer {
                     type = "${rabbit.exchange.federation.type}"),
             key = "${rabbit.routingKey.federation.changed}"))
     public void federationUpdate(byte[] body) {
-        String message = new String(body, Charset.forName("UTF-8"));
-        log.debug("[x] Received Federation to update: " + message);
+        if (log.isDebugEnabled())
+            log.debug("[x] Received Federation to update: " + new String(body, StandardCharsets.UTF_8));
 
-        ObjectMapper om = new ObjectMapper();
         Federation federation;
         try {
-            federation = om.readValue(message, Federation.class);
+            federation = amqpMessageCodec.readFederation(body);
             if (federation.getId() == null
                     || federation.getMembers() == null
                     || federation.getId().isEmpty())
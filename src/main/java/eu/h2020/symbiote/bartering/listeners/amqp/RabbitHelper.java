@@ -3,39 +3,109 @@ package eu.h2020.symbiote.bartering.listeners.amqp;
 import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
-import org.springframework.amqp.support.converter.SimpleMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
+/**
+ * Rabbit connection and listener containers. Each consumed queue has its own container factory,
+ * so that its concurrency, prefetch and number of messages acknowledged at once can be tuned separately.
+ */
 @Profile("platform")
 @Component
 public class RabbitHelper {
 
+    public static final String BARTERED_ACCESS_CONTAINER_FACTORY = "barteredAccessListenerContainerFactory";
+    public static final String FEDERATION_CONTAINER_FACTORY = "federationListenerContainerFactory";
+    public static final String TRUST_ENTRY_CONTAINER_FACTORY = "trustEntryListenerContainerFactory";
+
     private final String rabbitHost;
     private final String rabbitUsername;
     private final String rabbitPassword;
+    private final int channelCacheSize;
 
     public RabbitHelper(@Value("${rabbit.host}") String rabbitHost,
                         @Value("${rabbit.username}") String rabbitUsername,
-                        @Value("${rabbit.password}") String rabbitPassword) {
+                        @Value("${rabbit.password}") String rabbitPassword,
+                        @Value("${rabbit.connection.channelCacheSize:25}") int channelCacheSize) {
         this.rabbitHost = rabbitHost;
         this.rabbitUsername = rabbitUsername;
         this.rabbitPassword = rabbitPassword;
+        this.channelCacheSize = channelCacheSize;
+    }
+
+    /**
+     * @param concurrency    number of consumers started with the container
+     * @param maxConcurrency number of consumers the container can scale up to under load
+     * @param prefetch       number of unacknowledged messages delivered to each consumer
+     * @param txSize         number of messages processed by a consumer between acknowledgements
+     * @return listener container factory with the given settings
+     */
+    public static SimpleRabbitListenerContainerFactory createListenerContainerFactory(ConnectionFactory connectionFactory,
+                                                                                      MessageConverter messageConverter,
+                                                                                      int concurrency,
+                                                                                      int maxConcurrency,
+                                                                                      int prefetch,
+                                                                                      int txSize) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setMessageConverter(messageConverter);
+        factory.setConcurrentConsumers(concurrency);
+        factory.setMaxConcurrentConsumers(Math.max(concurrency, maxConcurrency));
+        factory.setPrefetchCount(Math.max(prefetch, txSize));
+        factory.setTxSize(txSize);
+        return factory;
     }
 
     @Bean
     public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
         SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
         factory.setConnectionFactory(connectionFactory);
-        factory.setMessageConverter(simpleMessageConverter());
+        factory.setMessageConverter(amqpMessageConverter());
         return factory;
     }
 
+    /**
+     * bartered access requests are independent RPCs, so they can be processed concurrently
+     */
+    @Bean(name = BARTERED_ACCESS_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory barteredAccessListenerContainerFactory(ConnectionFactory connectionFactory,
+                                                                                       @Value("${rabbit.listener.barteredAccess.concurrency:4}") int concurrency,
+                                                                                       @Value("${rabbit.listener.barteredAccess.maxConcurrency:16}") int maxConcurrency,
+                                                                                       @Value("${rabbit.listener.barteredAccess.prefetch:1}") int prefetch,
+                                                                                       @Value("${rabbit.listener.barteredAccess.txSize:1}") int txSize) {
+        return createListenerContainerFactory(connectionFactory, amqpMessageConverter(), concurrency, maxConcurrency, prefetch, txSize);
+    }
+
+    /**
+     * federation events have to be applied in order, so a single consumer is used by default
+     */
+    @Bean(name = FEDERATION_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory federationListenerContainerFactory(ConnectionFactory connectionFactory,
+                                                                                   @Value("${rabbit.listener.federation.concurrency:1}") int concurrency,
+                                                                                   @Value("${rabbit.listener.federation.maxConcurrency:1}") int maxConcurrency,
+                                                                                   @Value("${rabbit.listener.federation.prefetch:10}") int prefetch,
+                                                                                   @Value("${rabbit.listener.federation.txSize:1}") int txSize) {
+        return createListenerContainerFactory(connectionFactory, amqpMessageConverter(), concurrency, maxConcurrency, prefetch, txSize);
+    }
+
+    /**
+     * trust entry updates of the same platform have to be applied in order, so a single consumer is used by default
+     */
+    @Bean(name = TRUST_ENTRY_CONTAINER_FACTORY)
+    public SimpleRabbitListenerContainerFactory trustEntryListenerContainerFactory(ConnectionFactory connectionFactory,
+                                                                                   @Value("${rabbit.listener.trustEntry.concurrency:1}") int concurrency,
+                                                                                   @Value("${rabbit.listener.trustEntry.maxConcurrency:1}") int maxConcurrency,
+                                                                                   @Value("${rabbit.listener.trustEntry.prefetch:50}") int prefetch,
+                                                                                   @Value("${rabbit.listener.trustEntry.txSize:10}") int txSize) {
+        return createListenerContainerFactory(connectionFactory, amqpMessageConverter(), concurrency, maxConcurrency, prefetch, txSize);
+    }
+
     @Bean
-    SimpleMessageConverter simpleMessageConverter() {
-        return new SimpleMessageConverter();
+    RawBodyMessageConverter amqpMessageConverter() {
+        return new RawBodyMessageConverter();
     }
 
     @Bean
@@ -43,6 +113,7 @@ public class RabbitHelper {
         CachingConnectionFactory connectionFactory = new CachingConnectionFactory(rabbitHost);
         connectionFactory.setUsername(rabbitUsername);
         connectionFactory.setPassword(rabbitPassword);
+        connectionFactory.setChannelCacheSize(channelCacheSize);
         return connectionFactory;
     }
 }
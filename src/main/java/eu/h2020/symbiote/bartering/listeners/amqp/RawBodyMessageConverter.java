@@ -0,0 +1,17 @@
+package eu.h2020.symbiote.bartering.listeners.amqp;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+
+/**
+ * Listener message converter passing the raw message body to the listeners, which decode it
+ * using the {@link AmqpMessageCodec}, without intermediate strings (or java deserialization of the body).
+ * Outgoing messages (e.g. RPC replies) are created the same as by the {@link SimpleMessageConverter}.
+ */
+public class RawBodyMessageConverter extends SimpleMessageConverter {
+
+    @Override
+    public Object fromMessage(Message message) {
+        return message.getBody();
+    }
+}
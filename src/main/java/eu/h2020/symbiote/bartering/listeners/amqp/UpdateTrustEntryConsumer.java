@@ -1,8 +1,10 @@
 package eu.h2020.symbiote.bartering.listeners.amqp;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import eu.h2020.symbiote.bartering.repositories.TrustRepository;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.bartering.services.helpers.TrustEntriesChangeFeed;
+import eu.h2020.symbiote.bartering.services.helpers.TrustScoreTable;
 import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -12,20 +14,44 @@ import org.springframework.amqp.rabbit.annotation.QueueBinding;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 import java.io.IOException;
 import java.util.List;
 
+/**
+ * Applies the trust entry snapshots received from the Trust Manager in a single bulk write.
+ * Every applied entry gets the next change sequence number of the {@link TrustEntriesChangeFeed}.
+ */
 @Profile("platform")
 @Component
 public class UpdateTrustEntryConsumer {
 
 	private static Log log = LogFactory.getLog(UpdateTrustEntryConsumer.class);
 
+	private static final String FIELD_TYPE = "type";
+	private static final String FIELD_PLATFORM_ID = "platformId";
+	private static final String FIELD_RESOURCE_ID = "resourceId";
+	private static final String FIELD_VALUE = "value";
+	private static final String FIELD_LAST_UPDATE = "lastUpdate";
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@Autowired
+	private TrustScoreTable trustScoreTable;
+
+	@Autowired
+	private AmqpMessageCodec amqpMessageCodec;
+
 	@Autowired
-	private TrustRepository trustRepository;
+	private TrustEntriesChangeFeed trustEntriesChangeFeed;
 
-	@RabbitListener(bindings = @QueueBinding(
+	@RabbitListener(containerFactory = RabbitHelper.TRUST_ENTRY_CONTAINER_FACTORY, bindings = @QueueBinding(
 			value = @Queue,
 			exchange = @Exchange(
 					value = "${rabbit.exchange.TrustEntry.update}",
@@ -34,30 +60,61 @@ public class UpdateTrustEntryConsumer {
 					internal = "${rabbit.exchange.aam.internal}",
 					type = "topic"),
 			key = "${rabbit.routingKey.TrustEntry.update}"))
-	public void updateTrustEntry(String message) {
-
-		ObjectMapper om = new ObjectMapper();
+	public void updateTrustEntry(byte[] body) {
 
 		try {
-			List<TrustEntry> list= om.readValue(message, new TypeReference<List<TrustEntry>>(){});
+			List<TrustEntry> list = amqpMessageCodec.readTrustEntries(body);
+			if (list.isEmpty())
+				return;
 
-			list.forEach(te -> {
-				TrustEntry entry = trustRepository.getPREntryByPlatformId(te.getPlatformId());
-				if(entry!=null) {
-					entry.setLastUpdate(te.getLastUpdate());
-					entry.setValue(te.getValue());
-					entry.setType(te.getType());
-
-					trustRepository.save(entry);
-				}else
-					trustRepository.save(te);
-
-			});
+			// single unordered batch of upserts, keyed on the entry type and the platform/resource it concerns
+			BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, TrustEntry.class);
+			long changeSequence = trustEntriesChangeFeed.reserveSequence(list.size());
+			for (TrustEntry te : list) {
+				bulkOperations.upsert(getEntryQuery(te), getEntryUpdate(te, changeSequence++));
+			}
+			BulkWriteResult result = bulkOperations.execute();
+			// bulk writes don't emit mapping events
+			trustScoreTable.update(list);
+			result.getUpserts().forEach(upsert -> trustScoreTable.registerInserted(list.get(upsert.getIndex()), upsert.getId()));
+			log.debug("Trust entries updated: " + result.getMatchedCount() + ", inserted: " + result.getUpserts().size());
 
 		} catch (IOException e) {
 			log.error(e.getMessage());
+		} catch (RuntimeException e) {
+			log.error("Couldn't update the trust entries: " + e.getMessage());
 		}
 
 	}
 
+	private static Query getEntryQuery(TrustEntry te) {
+		Criteria criteria = Criteria.where(FIELD_TYPE).is(te.getType());
+		return new Query(te.getType() == TrustEntry.Type.PLATFORM_REPUTATION ?
+				criteria.and(FIELD_PLATFORM_ID).is(te.getPlatformId()) :
+				criteria.and(FIELD_RESOURCE_ID).is(te.getResourceId()));
+	}
+
+	/**
+	 * @param changeSequence sequence number of the change in the {@link TrustEntriesChangeFeed}
+	 * @return update of the trust value of an existing entry, inserting the whole entry if it doesn't exist
+	 */
+	private Update getEntryUpdate(TrustEntry te, long changeSequence) {
+		DBObject entry = new BasicDBObject();
+		mongoTemplate.getConverter().write(te, entry);
+		Update update = new Update().set(TrustEntriesChangeFeed.FIELD_CHANGE_SEQUENCE, changeSequence);
+		entry.keySet().forEach(field -> {
+			if (field.equals(FIELD_VALUE) || field.equals(FIELD_LAST_UPDATE)) {
+				update.set(field, entry.get(field));
+			} else if (!field.equals(FIELD_TYPE) && !field.equals(FIELD_PLATFORM_ID) && !field.equals(FIELD_RESOURCE_ID)) {
+				update.setOnInsert(field, entry.get(field));
+			}
+		});
+		// key field not matched by the query
+		String unmatchedKeyField = te.getType() == TrustEntry.Type.PLATFORM_REPUTATION ? FIELD_RESOURCE_ID : FIELD_PLATFORM_ID;
+		if (entry.get(unmatchedKeyField) != null) {
+			update.setOnInsert(unmatchedKeyField, entry.get(unmatchedKeyField));
+		}
+		return update;
+	}
+
 }
@@ -1,15 +1,16 @@
 package eu.h2020.symbiote.bartering.listeners.rest.controllers.core;
 
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
+import eu.h2020.symbiote.bartering.commons.ParsedCoupon;
 import eu.h2020.symbiote.bartering.config.ComponentSecurityHandlerProvider;
+import eu.h2020.symbiote.bartering.config.ServiceResponseProvider;
 import eu.h2020.symbiote.bartering.listeners.rest.interfaces.core.IOverseeCoupons;
-import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
 import eu.h2020.symbiote.bartering.services.IssuedCouponsRegistryManagementService;
 import eu.h2020.symbiote.barteringAndTrading.FilterRequest;
 import eu.h2020.symbiote.barteringAndTrading.FilterResponse;
 import eu.h2020.symbiote.security.accesspolicies.IAccessPolicy;
 import eu.h2020.symbiote.security.accesspolicies.common.SingleTokenAccessPolicyFactory;
 import eu.h2020.symbiote.security.accesspolicies.common.singletoken.SingleTokenAccessPolicySpecifier;
-import eu.h2020.symbiote.security.commons.Coupon;
 import eu.h2020.symbiote.security.commons.SecurityConstants;
 import eu.h2020.symbiote.security.commons.enums.CouponValidationStatus;
 import eu.h2020.symbiote.security.commons.exceptions.custom.*;
@@ -17,7 +18,6 @@ import eu.h2020.symbiote.security.commons.jwt.JWTClaims;
 import eu.h2020.symbiote.security.commons.jwt.JWTEngine;
 import eu.h2020.symbiote.security.communication.payloads.CouponValidity;
 import eu.h2020.symbiote.security.communication.payloads.SecurityRequest;
-import io.jsonwebtoken.Claims;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
@@ -25,12 +25,14 @@ import io.swagger.annotations.ApiResponses;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import java.security.cert.CertificateException;
 import java.util.*;
@@ -46,15 +48,22 @@ import java.util.*;
 public class OverseeCouponsController implements IOverseeCoupons {
 
 
+    private static final int DEFAULT_PAGE_SIZE = 100;
     private static Log log = LogFactory.getLog(OverseeCouponsController.class);
     private IssuedCouponsRegistryManagementService couponManagementService;
     private ComponentSecurityHandlerProvider componentSecurityHandlerProvider;
+    private ServiceResponseProvider serviceResponseProvider;
+    private int maximumRegistrationBatchSize;
 
     @Autowired
     public OverseeCouponsController(IssuedCouponsRegistryManagementService couponManagementService,
-                                    ComponentSecurityHandlerProvider componentSecurityHandlerProvider) {
+                                    ComponentSecurityHandlerProvider componentSecurityHandlerProvider,
+                                    ServiceResponseProvider serviceResponseProvider,
+                                    @Value("${btm.core.registration.maxBatchSize:1000}") int maximumRegistrationBatchSize) {
         this.couponManagementService = couponManagementService;
         this.componentSecurityHandlerProvider = componentSecurityHandlerProvider;
+        this.serviceResponseProvider = serviceResponseProvider;
+        this.maximumRegistrationBatchSize = maximumRegistrationBatchSize;
     }
 
     @Override
@@ -71,7 +80,7 @@ public class OverseeCouponsController implements IOverseeCoupons {
         if (!validationHttpStatus.equals(HttpStatus.OK))
             return getResponseWithSecurityHeaders(null, validationHttpStatus);
         try {
-            if (couponManagementService.registerCoupon(new Coupon(couponString))) {
+            if (couponManagementService.registerCoupon(ParsedCoupon.parse(couponString))) {
                 return getResponseWithSecurityHeaders(null, HttpStatus.OK);
             }
             return getResponseWithSecurityHeaders(null, HttpStatus.INTERNAL_SERVER_ERROR);
@@ -84,6 +93,24 @@ public class OverseeCouponsController implements IOverseeCoupons {
         }
     }
 
+    @Override
+    @ApiOperation(value = "Batch registration of coupons in the Core BTM")
+    @ApiResponses({
+            @ApiResponse(code = 400, message = "Too many coupons received at once")})
+    public ResponseEntity<List<CouponRegistrationResult>> registerCoupons(
+            @RequestHeader @ApiParam(value = "Security headers", required = true) HttpHeaders httpHeaders,
+            @RequestBody @ApiParam(value = "Coupons to be registered", required = true) List<String> couponStrings) {
+        // validate the client
+        HttpStatus validationHttpStatus = validateClientCredentials(httpHeaders);
+        if (!validationHttpStatus.equals(HttpStatus.OK))
+            return getResponseWithSecurityHeaders(null, validationHttpStatus);
+        if (couponStrings.size() > maximumRegistrationBatchSize) {
+            log.error("Received " + couponStrings.size() + " coupons to register, at most " + maximumRegistrationBatchSize + " are allowed");
+            return getResponseWithSecurityHeaders(null, HttpStatus.BAD_REQUEST);
+        }
+        return getResponseWithSecurityHeaders(couponManagementService.registerCoupons(couponStrings), HttpStatus.OK);
+    }
+
     @Override
     @ApiOperation(value = "Consume coupon in the Core BTM")
     @ApiResponses({
@@ -97,7 +124,7 @@ public class OverseeCouponsController implements IOverseeCoupons {
 
 
         try {
-            CouponValidationStatus couponValidationStatus = couponManagementService.consumeCoupon(new Coupon(couponString));
+            CouponValidationStatus couponValidationStatus = couponManagementService.consumeCoupon(ParsedCoupon.parse(couponString));
             if (couponValidationStatus == CouponValidationStatus.VALID) {
                 return getResponseWithSecurityHeaders(null, HttpStatus.OK);
             } else {
@@ -121,7 +148,7 @@ public class OverseeCouponsController implements IOverseeCoupons {
         if (!validationHttpStatus.equals(HttpStatus.OK))
             return getResponseWithSecurityHeaders(null, validationHttpStatus);
         try {
-            CouponValidity couponValidity = couponManagementService.isCouponValid(new Coupon(couponString));
+            CouponValidity couponValidity = couponManagementService.isCouponValid(ParsedCoupon.parse(couponString));
             return getResponseWithSecurityHeaders(couponValidity, HttpStatus.OK);
         } catch (ValidationException e) {
             log.error("Received coupon was malformed");
@@ -129,6 +156,29 @@ public class OverseeCouponsController implements IOverseeCoupons {
         }
     }
 
+    @Override
+    @ApiOperation(value = "Batch validation of coupons in Core BTM")
+    @ApiResponses({
+            @ApiResponse(code = 400, message = "At least one of the received coupons was malformed")})
+    public ResponseEntity<List<CouponValidity>> areCouponsValid(
+            @RequestHeader @ApiParam(value = "Security headers", required = true) HttpHeaders httpHeaders,
+            @RequestBody @ApiParam(value = "Coupons to be validated", required = true) List<String> couponStrings) {
+        // validate the client
+        HttpStatus validationHttpStatus = validateClientCredentials(httpHeaders);
+        if (!validationHttpStatus.equals(HttpStatus.OK))
+            return getResponseWithSecurityHeaders(null, validationHttpStatus);
+        try {
+            List<ParsedCoupon> coupons = new ArrayList<>(couponStrings.size());
+            for (String couponString : couponStrings) {
+                coupons.add(ParsedCoupon.parse(couponString));
+            }
+            return getResponseWithSecurityHeaders(couponManagementService.areCouponsValid(coupons), HttpStatus.OK);
+        } catch (ValidationException e) {
+            log.error("Received coupon was malformed");
+            return getResponseWithSecurityHeaders(null, HttpStatus.BAD_REQUEST);
+        }
+    }
+
     @Override
     @ApiOperation(value = "Cleanup all consumed coupons before provided timestamp")
     public ResponseEntity<Integer> cleanupConsumedCoupons(@RequestBody long timestamp) {
@@ -137,6 +187,14 @@ public class OverseeCouponsController implements IOverseeCoupons {
         return new ResponseEntity<>(removed, HttpStatus.OK);
     }
 
+    @Override
+    @ApiOperation(value = "Statistics (hits, misses, evictions) of the Core BTM caches")
+    public ResponseEntity<Map<String, Long>> getStatistics() {
+        Map<String, Long> statistics = couponManagementService.getStatistics();
+        statistics.putAll(serviceResponseProvider.getStatistics());
+        return new ResponseEntity<>(statistics, HttpStatus.OK);
+    }
+
     private HttpStatus validateClientCredentials(@RequestHeader HttpHeaders httpHeaders) {
         try {
             SecurityRequest securityRequest;
@@ -146,6 +204,7 @@ public class OverseeCouponsController implements IOverseeCoupons {
                 // cause empty map causes exception
                 return HttpStatus.UNAUTHORIZED;
             }
+            // the access policy is evaluated for every request, as it checks the request's challenge and timestamp too
             JWTClaims claims = JWTEngine.getClaimsFromToken(securityRequest.getSecurityCredentials().iterator().next().getToken());
             // building CHTAP access policy basing on platform found in ISS of security request token
             Map<String, IAccessPolicy> componentHomeTokenAPs = new HashMap<>();
@@ -172,7 +231,7 @@ public class OverseeCouponsController implements IOverseeCoupons {
         try {
             // prepare response
             HttpHeaders responseHttpHeaders = new HttpHeaders();
-            responseHttpHeaders.add(SecurityConstants.SECURITY_RESPONSE_HEADER, componentSecurityHandlerProvider.getComponentSecurityHandler().generateServiceResponse());
+            responseHttpHeaders.add(SecurityConstants.SECURITY_RESPONSE_HEADER, serviceResponseProvider.getServiceResponse());
             if (body == null)
                 new ResponseEntity(responseHttpHeaders, httpStatus);
             return new ResponseEntity<>(body, responseHttpHeaders, httpStatus);
@@ -182,44 +241,23 @@ public class OverseeCouponsController implements IOverseeCoupons {
     }
 
     @Override
-    @ApiOperation(value = "List used coupons")
+    @ApiOperation(value = "List used coupons",
+            notes = "Usages are counted per minute, hour or day, depending on their age, by the start of that period. "
+                    + "Usages older than the roll up thresholds are counted exactly only for hour/day aligned timestamps.")
     @ApiResponses({
             @ApiResponse(code = 400, message = "Received request was malformed")})
-    public ResponseEntity<List<FilterResponse>> listCouponUsage(@RequestBody FilterRequest request)
-            throws ValidationException {
-        if (!request.isValidRequest())
+    public ResponseEntity<List<FilterResponse>> listCouponUsage(
+            @RequestBody FilterRequest request,
+            @RequestParam(value = "page", required = false) @ApiParam(value = "Page of the report, whole report is returned if absent") Integer page,
+            @RequestParam(value = "size", required = false) @ApiParam(value = "Size of the page, " + DEFAULT_PAGE_SIZE + " by default") Integer size) {
+        if (!request.isValidRequest()
+                || (page != null && page < 0)
+                || (size != null && size <= 0))
             return getResponseWithSecurityHeaders(null, HttpStatus.BAD_REQUEST);
 
-        List<FilterResponse> list = new ArrayList<>();
-        Set<AccountingCoupon> set = couponManagementService.getCouponStats(request);
-
-        for (AccountingCoupon ac : set){
-            boolean addIt = false;
-
-            // match federation id
-            if(request.getFederationId() != null) {
-                Claims claims = JWTEngine.getClaims(ac.getCouponString());
-                if (claims.get(SecurityConstants.CLAIM_NAME_FEDERATION_ID,
-                        String.class).equals(request.federationId)) {
-                    addIt = true;
-                }
-            }
-            else {
-                addIt = true;
-            }
-
-            // add it to returning list
-            if (addIt){
-                list.add(new FilterResponse(
-                        ac.getId(),
-                        ac.getIssuer(),
-                        request.beginTimestamp!=null?
-                                ac.getNumberOfUsedTimeFiltered(request.beginTimestamp, request.endTimestamp) :
-                                ac.getUsagesCounter()
-                ));
-            }
-        }
-
+        List<FilterResponse> list = couponManagementService.getCouponUsage(request,
+                page,
+                size == null ? DEFAULT_PAGE_SIZE : size);
         return getResponseWithSecurityHeaders(list, HttpStatus.OK);
     }
 
@@ -1,18 +1,21 @@
 package eu.h2020.symbiote.bartering.listeners.rest.interfaces.core;
 
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
 import eu.h2020.symbiote.barteringAndTrading.FilterRequest;
 import eu.h2020.symbiote.barteringAndTrading.FilterResponse;
 import eu.h2020.symbiote.security.commons.SecurityConstants;
-import eu.h2020.symbiote.security.commons.exceptions.custom.ValidationException;
 import eu.h2020.symbiote.security.communication.payloads.CouponValidity;
 import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import java.util.List;
+import java.util.Map;
 
 @Profile("core")
 public interface IOverseeCoupons {
@@ -22,11 +25,21 @@ public interface IOverseeCoupons {
             @RequestHeader HttpHeaders httpHeaders,
             @RequestHeader(SecurityConstants.COUPON_HEADER_NAME) String couponString);
 
+    @PostMapping(value = SecurityConstants.BTM_REGISTER_COUPON + "/batch")
+    ResponseEntity<List<CouponRegistrationResult>> registerCoupons(
+            @RequestHeader HttpHeaders httpHeaders,
+            @RequestBody List<String> couponStrings);
+
     @PostMapping(value = SecurityConstants.BTM_IS_COUPON_VALID)
     ResponseEntity<CouponValidity> isCouponValid(
             @RequestHeader HttpHeaders httpHeaders,
             @RequestHeader(SecurityConstants.COUPON_HEADER_NAME) String couponString);
 
+    @PostMapping(value = SecurityConstants.BTM_IS_COUPON_VALID + "/batch")
+    ResponseEntity<List<CouponValidity>> areCouponsValid(
+            @RequestHeader HttpHeaders httpHeaders,
+            @RequestBody List<String> couponStrings);
+
     @PostMapping(value = SecurityConstants.BTM_CONSUME_COUPON)
     ResponseEntity<String> consumeCoupon(
             @RequestHeader HttpHeaders httpHeaders,
@@ -36,5 +49,11 @@ public interface IOverseeCoupons {
     ResponseEntity<Integer> cleanupConsumedCoupons(@RequestBody long timestamp);
 
     @PostMapping(value = "/couponusage")
-    ResponseEntity<List<FilterResponse>> listCouponUsage(@RequestBody FilterRequest filter) throws ValidationException;
+    ResponseEntity<List<FilterResponse>> listCouponUsage(
+            @RequestBody FilterRequest filter,
+            @RequestParam(value = "page", required = false) Integer page,
+            @RequestParam(value = "size", required = false) Integer size);
+
+    @GetMapping(value = "/statistics")
+    ResponseEntity<Map<String, Long>> getStatistics();
 }
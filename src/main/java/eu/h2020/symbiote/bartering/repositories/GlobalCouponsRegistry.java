@@ -3,6 +3,7 @@ package eu.h2020.symbiote.bartering.repositories;
 import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
 import org.springframework.context.annotation.Profile;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 
 import java.util.Set;
 
@@ -19,6 +20,10 @@ public interface GlobalCouponsRegistry extends MongoRepository<AccountingCoupon,
 
     Set<AccountingCoupon> findAllByLastConsumptionTimestampBefore(long timestamp);
 
+    /**
+     * @return coupons of the issuer used (between their first and last consumption) within the given period
+     */
+    @Query("{ 'issuer' : ?0, 'firstUseTimestamp' : { $lt : ?2 }, 'lastConsumptionTimestamp' : { $gte : ?1 } }")
     Set<AccountingCoupon> findAllByIssuerAndUseTimestampBetween(String issuer, long begin, long end);
 
     Set<AccountingCoupon> findAllByIssuer(String platformId);
@@ -0,0 +1,13 @@
+package eu.h2020.symbiote.bartering.repositories;
+
+import eu.h2020.symbiote.bartering.repositories.entities.PooledCoupon;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+/**
+ * Coupons of the PlatformBTM coupon pool, persisted so that the pool survives restarts
+ * of the component without leaving registered coupons unused.
+ */
+@Profile("platform")
+public interface PooledCouponsRepository extends MongoRepository<PooledCoupon, String> {
+}
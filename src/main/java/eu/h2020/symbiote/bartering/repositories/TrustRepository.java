@@ -22,7 +22,7 @@ public interface TrustRepository extends MongoRepository<TrustEntry, String> {
 	 *            {@link TrustEntry.Type}
 	 * @return list of {@link TrustEntry}
 	 */
-	@Query("{'lastUpdate': {$lte: ?0}, 'type' : ?1}")
+	@Query("{'lastUpdate': {$gt: ?0}, 'type' : ?1}")
 	List<TrustEntry> findEntriesUpdatedAfter(Date updatedAfter,
 			TrustEntry.Type type);
 
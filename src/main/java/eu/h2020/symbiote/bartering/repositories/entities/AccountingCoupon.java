@@ -1,28 +1,57 @@
 package eu.h2020.symbiote.bartering.repositories.entities;
 
+import eu.h2020.symbiote.bartering.commons.ParsedCoupon;
 import eu.h2020.symbiote.security.commons.Coupon;
 import eu.h2020.symbiote.security.commons.enums.CouponValidationStatus;
 import eu.h2020.symbiote.security.commons.exceptions.custom.MalformedJWTException;
 import eu.h2020.symbiote.security.commons.exceptions.custom.ValidationException;
-import eu.h2020.symbiote.security.commons.jwt.JWTClaims;
-import eu.h2020.symbiote.security.commons.jwt.JWTEngine;
 import eu.h2020.symbiote.security.helpers.CryptoHelper;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
 import org.springframework.data.mongodb.core.mapping.Document;
 
-import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * CouponEntity stored in the Core BTM registry along with its consumption details.
+ * Indexes of the registry are managed by {@link eu.h2020.symbiote.bartering.config.CoreRegistryIndexes}.
  */
 @Document
 public class AccountingCoupon {
 
+    /**
+     * names of the persisted fields, used to build atomic updates and queries over the registry
+     */
+    public static final String FIELD_ID = "_id";
+    public static final String FIELD_COUPON_STRING = "couponString";
+    public static final String FIELD_ISSUER = "issuer";
+    public static final String FIELD_FEDERATION_ID = "federationId";
+    public static final String FIELD_TYPE = "type";
+    public static final String FIELD_MAXIMUM_ALLOWED_USAGE = "maximumAllowedUsage";
+    public static final String FIELD_USAGES_COUNTER = "usagesCounter";
+    public static final String FIELD_USE_TIMESTAMP = "useTimestamp";
+    public static final String FIELD_USAGE_BUCKETS = "usageBuckets";
+    public static final String FIELD_FIRST_USE_TIMESTAMP = "firstUseTimestamp";
+    public static final String FIELD_LAST_CONSUMPTION_TIMESTAMP = "lastConsumptionTimestamp";
+    public static final String FIELD_STATUS = "status";
+    public static final String FIELD_EXPIRE_AT = "expireAt";
+
+    /**
+     * duration (in ms) of the time buckets in which the coupon usages are counted
+     */
+    public static final long USAGE_BUCKET_DURATION = 60000;
+
     @Id
     private final String id;
     private final String couponString;
     private final String issuer;
+    /**
+     * federation the coupon was issued for, persisted to filter the coupons without parsing them
+     */
+    private final String federationId;
     private final Coupon.Type type;
 
     /**
@@ -36,14 +65,22 @@ public class AccountingCoupon {
     private long usagesCounter;
 
     /**
-     * required to get usage history
+     * usage history: number of consumptions per time bucket (keyed by the bucket's index, see {@link #getUsageBucket(long)}),
+     * so that the document grows with the time the coupon is used for, not with the number of its consumptions.
+     * Old buckets are rolled up into hourly/daily ones by {@link eu.h2020.symbiote.bartering.services.helpers.UsageBucketsRollup}
+     */
+    private Map<String, Long> usageBuckets;
+
+    /**
+     * usage history of the coupons consumed before the usage buckets were introduced, no longer appended
      */
     private List<Long> useTimestamp;
 
     /**
-     * required to evaluate a timed coupon
+     * required to evaluate a timed coupon, not stored until the first consumption, so that the consumption
+     * can set it atomically using $min
      */
-    private long firstUseTimestamp;
+    private Long firstUseTimestamp;
     private long lastConsumptionTimestamp;
 
     /**
@@ -51,28 +88,63 @@ public class AccountingCoupon {
      */
     private CouponValidationStatus status;
 
+    /**
+     * time the coupon is removed from the registry at, set once it reaches the final status (null if it is retained)
+     */
+    private Date expireAt;
+
     public AccountingCoupon(String couponString) throws
             MalformedJWTException,
             ValidationException {
-        JWTClaims claims = JWTEngine.getClaimsFromToken(couponString);
-        this.id = createIdFromNotification(claims.getJti(), claims.getIss());
-        this.couponString = couponString;
-        this.issuer = claims.getIss();
-        this.maximumAllowedUsage = Long.parseLong(claims.getVal());
-        this.type = new Coupon(couponString).getType();
+        this(ParsedCoupon.parse(couponString));
+    }
+
+    /**
+     * @param parsedCoupon coupon to be registered, its claims are not parsed again
+     */
+    public AccountingCoupon(ParsedCoupon parsedCoupon) {
+        this(parsedCoupon.getRegisteredCouponId(),
+                parsedCoupon.getCouponString(),
+                parsedCoupon.getIssuer(),
+                parsedCoupon.getFederationId(),
+                parsedCoupon.getType(),
+                parsedCoupon.getMaximumAllowedUsage());
         this.usagesCounter = 0;
-        this.firstUseTimestamp = 0;
         this.lastConsumptionTimestamp = 0;
         this.status = CouponValidationStatus.VALID;
+        this.usageBuckets = new HashMap<>();
+    }
 
-        this.useTimestamp=new ArrayList<>();
-
+    /**
+     * used to read the coupons from the registry without parsing their coupon strings
+     */
+    @PersistenceConstructor
+    AccountingCoupon(String id,
+                     String couponString,
+                     String issuer,
+                     String federationId,
+                     Coupon.Type type,
+                     long maximumAllowedUsage) {
+        this.id = id;
+        this.couponString = couponString;
+        this.issuer = issuer;
+        this.federationId = federationId;
+        this.type = type;
+        this.maximumAllowedUsage = maximumAllowedUsage;
     }
 
     public static String createIdFromNotification(String jti, String iss) {
         return jti + CryptoHelper.FIELDS_DELIMITER + iss;
     }
 
+    /**
+     * @param timestamp of the consumption
+     * @return key of the usage bucket the consumption is counted in
+     */
+    public static String getUsageBucket(long timestamp) {
+        return String.valueOf(timestamp / USAGE_BUCKET_DURATION);
+    }
+
     public long getMaximumAllowedUsage() {
         return maximumAllowedUsage;
     }
@@ -89,12 +161,15 @@ public class AccountingCoupon {
         this.usagesCounter = usagesCounter;
     }
 
+    /**
+     * @return time of the first consumption or 0 if the coupon was not used yet
+     */
     public long getFirstUseTimestamp() {
-        return firstUseTimestamp;
+        return firstUseTimestamp == null ? 0 : firstUseTimestamp;
     }
 
     public void setFirstUseTimestamp(long firstUseTimestamp) {
-        this.firstUseTimestamp = firstUseTimestamp;
+        this.firstUseTimestamp = firstUseTimestamp == 0 ? null : firstUseTimestamp;
     }
 
     public long getLastConsumptionTimestamp() {
@@ -103,10 +178,10 @@ public class AccountingCoupon {
 
     public void setLastConsumptionTimestamp(long lastConsumptionTimestamp) {
         this.lastConsumptionTimestamp = lastConsumptionTimestamp;
-        if (useTimestamp==null){
-            this.useTimestamp=new ArrayList<>();
+        if (usageBuckets == null) {
+            this.usageBuckets = new HashMap<>();
         }
-        this.useTimestamp.add(lastConsumptionTimestamp);
+        this.usageBuckets.merge(getUsageBucket(lastConsumptionTimestamp), 1L, Long::sum);
     }
 
     public CouponValidationStatus getStatus() {
@@ -117,6 +192,14 @@ public class AccountingCoupon {
         this.status = status;
     }
 
+    public Date getExpireAt() {
+        return expireAt;
+    }
+
+    public void setExpireAt(Date expireAt) {
+        this.expireAt = expireAt;
+    }
+
     public String getId() {
         return id;
     }
@@ -129,13 +212,44 @@ public class AccountingCoupon {
         return issuer;
     }
 
-    public long getNumberOfUsedTimeFiltered(long begin, long end){
-        if (useTimestamp != null){
-            return useTimestamp
+    public String getFederationId() {
+        return federationId;
+    }
+
+    /**
+     * @return number of consumptions in the given period, counted with the precision of the usage buckets
+     * (a bucket is counted if it starts within the period)
+     */
+    public long getNumberOfUsedTimeFiltered(long begin, long end) {
+        return countUsages(usageBuckets, useTimestamp, begin, end);
+    }
+
+    /**
+     * Counts the consumptions by the start of their usage bucket, which is the same as rounding the period up
+     * to the whole buckets. Buckets rolled up into hourly/daily ones (see
+     * {@link eu.h2020.symbiote.bartering.services.helpers.UsageBucketsRollup}) are counted whole as well,
+     * so the count is exact only for the periods aligned to them.
+     *
+     * @param usageBuckets number of consumptions per usage bucket
+     * @param useTimestamp legacy usage history
+     * @return number of consumptions in the given period, counted with the precision of the usage buckets
+     */
+    public static long countUsages(Map<String, Long> usageBuckets, List<Long> useTimestamp, long begin, long end) {
+        long used = 0;
+        if (usageBuckets != null) {
+            for (Map.Entry<String, Long> usageBucket : usageBuckets.entrySet()) {
+                long bucketStart = Long.parseLong(usageBucket.getKey()) * USAGE_BUCKET_DURATION;
+                if (bucketStart >= begin && bucketStart < end) {
+                    used += usageBucket.getValue();
+                }
+            }
+        }
+        if (useTimestamp != null) {
+            used += useTimestamp
                     .stream()
-                    .filter( x -> (x >= begin && x < end))
+                    .filter(x -> (x >= begin && x < end))
                     .count();
         }
-        return 0;
+        return used;
     }
 }
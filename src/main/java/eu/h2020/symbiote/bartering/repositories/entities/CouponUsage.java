@@ -0,0 +1,38 @@
+package eu.h2020.symbiote.bartering.repositories.entities;
+
+import org.springframework.data.annotation.Id;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Projection of the {@link AccountingCoupon} containing only the fields needed to report its usage.
+ */
+public class CouponUsage {
+
+    @Id
+    private String id;
+    private String issuer;
+    private long usagesCounter;
+    private Map<String, Long> usageBuckets;
+    private List<Long> useTimestamp;
+
+    public String getId() {
+        return id;
+    }
+
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public long getUsagesCounter() {
+        return usagesCounter;
+    }
+
+    /**
+     * @return number of the coupon consumptions in the given period
+     */
+    public long getNumberOfUsedTimeFiltered(long begin, long end) {
+        return AccountingCoupon.countUsages(usageBuckets, useTimestamp, begin, end);
+    }
+}
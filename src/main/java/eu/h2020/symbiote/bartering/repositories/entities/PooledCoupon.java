@@ -0,0 +1,47 @@
+package eu.h2020.symbiote.bartering.repositories.entities;
+
+import eu.h2020.symbiote.security.commons.Coupon;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Coupon issued by this platform and registered in the Core BTM, waiting in the coupon pool to be handed out.
+ */
+@Document
+public class PooledCoupon {
+    @Id
+    private final String id;
+    private final String couponString;
+    private final String federationId;
+    private final Coupon.Type type;
+
+    public PooledCoupon(String id,
+                        String couponString,
+                        String federationId,
+                        Coupon.Type type) {
+        this.id = id;
+        this.couponString = couponString;
+        this.federationId = federationId;
+        this.type = type;
+    }
+
+    public PooledCoupon(Coupon coupon, String federationId) {
+        this(coupon.getId(), coupon.getCoupon(), federationId, coupon.getType());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCouponString() {
+        return couponString;
+    }
+
+    public String getFederationId() {
+        return federationId;
+    }
+
+    public Coupon.Type getType() {
+        return type;
+    }
+}
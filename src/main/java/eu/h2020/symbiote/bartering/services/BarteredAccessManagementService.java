@@ -5,11 +5,14 @@ import eu.h2020.symbiote.bartering.communication.CoreBTMClient;
 import eu.h2020.symbiote.bartering.config.AppConfig;
 import eu.h2020.symbiote.bartering.config.ComponentSecurityHandlerProvider;
 import eu.h2020.symbiote.bartering.repositories.CouponsWallet;
-import eu.h2020.symbiote.bartering.repositories.FederationsRepository;
 import eu.h2020.symbiote.bartering.repositories.entities.CouponEntity;
+import eu.h2020.symbiote.bartering.services.helpers.BTMAddressDirectory;
+import eu.h2020.symbiote.bartering.services.helpers.BTMClientsCache;
+import eu.h2020.symbiote.bartering.services.helpers.BarteredAccessDecisionCache;
 import eu.h2020.symbiote.bartering.services.helpers.CouponIssuer;
-import eu.h2020.symbiote.model.mim.Federation;
-import eu.h2020.symbiote.model.mim.FederationMember;
+import eu.h2020.symbiote.bartering.services.helpers.CouponPool;
+import eu.h2020.symbiote.bartering.services.helpers.FederationMembershipIndex;
+import eu.h2020.symbiote.bartering.services.helpers.TrustScoreTable;
 import eu.h2020.symbiote.security.accesspolicies.IAccessPolicy;
 import eu.h2020.symbiote.security.accesspolicies.common.SingleTokenAccessPolicyFactory;
 import eu.h2020.symbiote.security.accesspolicies.common.singletoken.SingleTokenAccessPolicySpecifier;
@@ -18,7 +21,6 @@ import eu.h2020.symbiote.security.commons.SecurityConstants;
 import eu.h2020.symbiote.security.commons.enums.CouponValidationStatus;
 import eu.h2020.symbiote.security.commons.exceptions.custom.*;
 import eu.h2020.symbiote.security.commons.jwt.JWTEngine;
-import eu.h2020.symbiote.security.communication.payloads.AAM;
 import eu.h2020.symbiote.security.communication.payloads.BarteredAccessRequest;
 import eu.h2020.symbiote.security.communication.payloads.CouponRequest;
 import eu.h2020.symbiote.security.communication.payloads.CouponValidity;
@@ -26,14 +28,10 @@ import io.jsonwebtoken.Claims;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -45,32 +43,42 @@ import java.util.stream.Collectors;
 @Profile("platform")
 @Service
 public class BarteredAccessManagementService {
-    private static final String BTM_SUFFIX = "/btm";
     private static Log log = LogFactory.getLog(BarteredAccessManagementService.class);
 
     private final String coreBTMAddress;
     private final ComponentSecurityHandlerProvider componentSecurityHandlerProvider;
     private final CouponIssuer couponIssuer;
     private final CouponsWallet couponsWallet;
-    private final FederationsRepository federationsRepository;
+    private final FederationMembershipIndex federationMembershipIndex;
     private final AppConfig appConfig;
+    private final BTMClientsCache btmClientsCache;
+    private final CouponPool couponPool;
+    private final BarteredAccessDecisionCache barteredAccessDecisionCache;
+    private final BTMAddressDirectory btmAddressDirectory;
+    private final TrustScoreTable trustScoreTable;
 
     @Autowired
     public BarteredAccessManagementService(CouponIssuer couponIssuer,
-                                           @Value("${symbIoTe.core.interface.url}") String coreInterfaceAddress,
+                                           BTMAddressDirectory btmAddressDirectory,
                                            CouponsWallet couponsWallet,
-                                           FederationsRepository federationsRepository,
+                                           FederationMembershipIndex federationMembershipIndex,
                                            ComponentSecurityHandlerProvider componentSecurityHandlerProvider,
-                                           AppConfig appConfig) {
+                                           AppConfig appConfig,
+                                           BTMClientsCache btmClientsCache,
+                                           CouponPool couponPool,
+                                           BarteredAccessDecisionCache barteredAccessDecisionCache,
+                                           TrustScoreTable trustScoreTable) {
         this.appConfig = appConfig;
-        this.coreBTMAddress = (coreInterfaceAddress.endsWith("/aam")
-                ? coreInterfaceAddress.substring(0, coreInterfaceAddress.length() - 4)
-                : coreInterfaceAddress)
-                + BTM_SUFFIX;
+        this.btmClientsCache = btmClientsCache;
+        this.couponPool = couponPool;
+        this.barteredAccessDecisionCache = barteredAccessDecisionCache;
+        this.btmAddressDirectory = btmAddressDirectory;
+        this.coreBTMAddress = btmAddressDirectory.getCoreBTMAddress();
         this.componentSecurityHandlerProvider = componentSecurityHandlerProvider;
         this.couponIssuer = couponIssuer;
         this.couponsWallet = couponsWallet;
-        this.federationsRepository = federationsRepository;
+        this.federationMembershipIndex = federationMembershipIndex;
+        this.trustScoreTable = trustScoreTable;
     }
 
     /**
@@ -89,15 +97,31 @@ public class BarteredAccessManagementService {
             SecurityHandlerException,
             InvalidArgumentsException,
             WrongCredentialsException {
+        // clients platform has to be trusted
+        if (!trustScoreTable.isPlatformTrusted(barteredAccessRequest.getClientPlatform())) {
+            throw new ValidationException("Clients platform reputation is below the trust threshold");
+        }
+        // reuse the coupon of the recent decision for the same client, federation and coupon type
+        BarteredAccessDecisionCache.Decision decision = barteredAccessDecisionCache.get(
+                barteredAccessRequest.getClientPlatform(),
+                barteredAccessRequest.getFederationId(),
+                barteredAccessRequest.getCouponType());
+        if (decision != null) {
+            if (isGrantedUsingCachedDecision(decision)) {
+                log.debug("access granted using the cached decision");
+                return true;
+            }
+            barteredAccessDecisionCache.invalidate(
+                    barteredAccessRequest.getClientPlatform(),
+                    barteredAccessRequest.getFederationId(),
+                    barteredAccessRequest.getCouponType());
+        }
         // check if both client requesting access and this platform is in the given federation
         log.debug("check if both client requesting access and this platform is in the given federation");
-        if (!federationsRepository.exists(barteredAccessRequest.getFederationId())) {
+        Set<String> federationMembersIds = federationMembershipIndex.getMembers(barteredAccessRequest.getFederationId());
+        if (federationMembersIds == null) {
             throw new InvalidArgumentsException("Provided federation doesn't exist");
         }
-        Federation federation = federationsRepository.findOne(barteredAccessRequest.getFederationId());
-        Set<String> federationMembersIds = federation.getMembers().stream()
-                .map(FederationMember::getPlatformId)
-                .collect(Collectors.toSet());
         if (!federationMembersIds.contains(barteredAccessRequest.getClientPlatform())
                 || !federationMembersIds.contains(appConfig.getPlatformIdentifier())) {
             throw new ValidationException("Local platform or clients platform is not in provided federation");
@@ -106,21 +130,14 @@ public class BarteredAccessManagementService {
         //get clients btm address
         log.debug("get clients btm address");
 
-        Map<String, AAM> availableAAMs = componentSecurityHandlerProvider.getComponentSecurityHandler().getSecurityHandler().getAvailableAAMs();
-        if (!availableAAMs.containsKey(barteredAccessRequest.getClientPlatform())) {
+        String clientBtmAddress = btmAddressDirectory.getBTMAddress(barteredAccessRequest.getClientPlatform());
+        if (clientBtmAddress == null) {
             throw new BTMException("Clients platform is not registered in CoreAAM.");
         }
 
-
-        String clientPlatformAddress = availableAAMs.get(barteredAccessRequest.getClientPlatform()).getAamAddress();
-        String clientBtmAddress = (clientPlatformAddress.endsWith("/aam")
-                ? clientPlatformAddress.substring(0, clientPlatformAddress.length() - 4)
-                : clientPlatformAddress)
-                + BTM_SUFFIX;
-
         // ask for my own coupon
         log.debug("ask for my own coupon");
-        BTMClient remotePlatformBTMClient = new BTMClient(clientBtmAddress);
+        BTMClient remotePlatformBTMClient = btmClientsCache.getBTMClient(clientBtmAddress);
         //generate coupon Request
         CouponRequest couponRequest = new CouponRequest(barteredAccessRequest.getCouponType(),
                 barteredAccessRequest.getFederationId(),
@@ -137,13 +154,20 @@ public class BarteredAccessManagementService {
         }
         // if we have received our own coupon but it was already invalidated (we couldn't consume it anymore)
         log.debug("if we have received our own coupon but it was already invalidated (we couldn't consume it anymore)");
-        CoreBTMClient coreBTMClient = new CoreBTMClient(this.coreBTMAddress, this.componentSecurityHandlerProvider.getComponentSecurityHandler());
+        CoreBTMClient coreBTMClient = btmClientsCache.getCoreBTMClient(this.coreBTMAddress);
         if (claims.getIssuer().equals(appConfig.getPlatformIdentifier())
                 && !coreBTMClient.consumeCoupon(receivedCouponString)) {
             //TODO shouldn't we pass the resource id for which we want to consume this coupon?
             log.error("Core did not confirmed coupon consumption.");
             return false;
         }
+        if (claims.getIssuer().equals(appConfig.getPlatformIdentifier())) {
+            barteredAccessDecisionCache.putLocalCoupon(
+                    barteredAccessRequest.getClientPlatform(),
+                    barteredAccessRequest.getFederationId(),
+                    barteredAccessRequest.getCouponType(),
+                    receivedCouponString);
+        }
         // if we have received foreign coupon for bartering
         log.debug("if we have received foreign coupon for bartering");
         if (!claims.getIssuer().equals(appConfig.getPlatformIdentifier())) {
@@ -156,11 +180,35 @@ public class BarteredAccessManagementService {
             }
             log.info("Received and saved new valid coupon from: " + barteredAccessRequest.getClientPlatform());
             couponsWallet.save(new CouponEntity(new Coupon(receivedCouponString)));
+            barteredAccessDecisionCache.putForeignCoupon(
+                    barteredAccessRequest.getClientPlatform(),
+                    barteredAccessRequest.getFederationId(),
+                    barteredAccessRequest.getCouponType(),
+                    receivedCouponString,
+                    couponValidity);
             // TODO don't we need to issue our own coupon and report to the CoreBTM that is was consumed?
         }
         return true;
     }
 
+    /**
+     * @return true if the coupon of the cached decision still allows to grant the access
+     */
+    private boolean isGrantedUsingCachedDecision(BarteredAccessDecisionCache.Decision decision) throws
+            SecurityHandlerException,
+            WrongCredentialsException,
+            BTMException {
+        if (!decision.isLocalCoupon()) {
+            return decision.use();
+        }
+        try {
+            return btmClientsCache.getCoreBTMClient(this.coreBTMAddress).consumeCoupon(decision.getCouponString());
+        } catch (InvalidArgumentsException e) {
+            // coupon can not be consumed anymore
+            return false;
+        }
+    }
+
     /**
      * Returns coupon to grant local user access to the federated resource in other platform.
      *
@@ -198,23 +246,44 @@ public class BarteredAccessManagementService {
                     CouponValidationStatus.VALID);
             log.info("search for all stored coupons: " + couponEntityHashSet.toString());
 
-            CoreBTMClient coreBTMClient = new CoreBTMClient(this.coreBTMAddress, this.componentSecurityHandlerProvider.getComponentSecurityHandler());
-            for (CouponEntity couponEntity : couponEntityHashSet) {
-                // validate couponEntity in core
-                log.debug("validate couponEntity in core");
-                CouponValidity couponValidity = coreBTMClient.isCouponValid(couponEntity.getCouponString());
-                // if core confirms Validity of the couponEntity - return it
-                if (couponValidity.getStatus().equals(CouponValidationStatus.VALID)) {
+            CoreBTMClient coreBTMClient = btmClientsCache.getCoreBTMClient(this.coreBTMAddress);
+            if (!couponEntityHashSet.isEmpty()) {
+                // validate all stored coupons in core using a single request
+                log.debug("validate stored coupons in core");
+                List<CouponEntity> couponEntities = new ArrayList<>(couponEntityHashSet);
+                List<CouponValidity> couponValidities = coreBTMClient.areCouponsValid(couponEntities.stream()
+                        .map(CouponEntity::getCouponString)
+                        .collect(Collectors.toList()));
+                String validCouponString = null;
+                for (int i = 0; i < couponEntities.size(); i++) {
+                    CouponEntity couponEntity = couponEntities.get(i);
+                    CouponValidity couponValidity = couponValidities.get(i);
+                    // if core confirms Validity of the couponEntity - return it
+                    if (couponValidity.getStatus().equals(CouponValidationStatus.VALID)) {
+                        if (validCouponString == null) {
+                            validCouponString = couponEntity.getCouponString();
+                        }
+                        continue;
+                    }
+                    //else update db
+                    couponEntity.setStatus(couponValidity.getStatus());
+                    couponsWallet.save(couponEntity);
+                }
+                if (validCouponString != null) {
                     log.debug("core confirms Validity of the couponEntity - return it");
-                    return couponEntity.getCouponString();
+                    return validCouponString;
                 }
-                //else update db
-                couponEntity.setStatus(couponValidity.getStatus());
-                couponsWallet.save(couponEntity);
             }
-            // if no valid coupon found - create new for bartering
+            // if no valid coupon found - take the pre-registered one from the pool
+            Coupon coupon = couponPool.poll(couponRequest.getCouponType(), couponRequest.getFederationId(), coreBTMClient);
+            if (coupon != null) {
+                log.debug("return pooled coupon");
+                couponsWallet.save(new CouponEntity(coupon));
+                return coupon.getCoupon();
+            }
+            // or create new for bartering
             log.debug("if no valid coupon found - create new for bartering");
-            Coupon coupon = couponIssuer.getCoupon(couponRequest.getCouponType(), couponRequest.getFederationId());
+            coupon = couponIssuer.getCoupon(couponRequest.getCouponType(), couponRequest.getFederationId());
             //register coupon in core
             log.debug("register coupon in core");
             if (!coreBTMClient.registerCoupon(coupon.getCoupon())) {
@@ -1,30 +1,48 @@
 package eu.h2020.symbiote.bartering.services;
 
-import eu.h2020.symbiote.bartering.config.ComponentSecurityHandlerProvider;
+import com.mongodb.BulkWriteError;
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
+import eu.h2020.symbiote.bartering.commons.ParsedCoupon;
 import eu.h2020.symbiote.bartering.repositories.GlobalCouponsRegistry;
 import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
+import eu.h2020.symbiote.bartering.repositories.entities.CouponUsage;
+import eu.h2020.symbiote.bartering.services.helpers.BtmCertificatesCache;
+import eu.h2020.symbiote.bartering.services.helpers.CouponRetentionPolicy;
+import eu.h2020.symbiote.bartering.services.helpers.CouponValidityCache;
+import eu.h2020.symbiote.bartering.services.helpers.PeriodicCouponsExpiryScheduler;
 import eu.h2020.symbiote.barteringAndTrading.FilterRequest;
-import eu.h2020.symbiote.security.commons.Certificate;
+import eu.h2020.symbiote.barteringAndTrading.FilterResponse;
 import eu.h2020.symbiote.security.commons.Coupon;
+import eu.h2020.symbiote.security.commons.SecurityConstants;
 import eu.h2020.symbiote.security.commons.enums.CouponValidationStatus;
 import eu.h2020.symbiote.security.commons.exceptions.custom.BTMException;
 import eu.h2020.symbiote.security.commons.exceptions.custom.MalformedJWTException;
 import eu.h2020.symbiote.security.commons.exceptions.custom.SecurityHandlerException;
 import eu.h2020.symbiote.security.commons.exceptions.custom.ValidationException;
-import eu.h2020.symbiote.security.commons.jwt.JWTClaims;
 import eu.h2020.symbiote.security.commons.jwt.JWTEngine;
 import eu.h2020.symbiote.security.communication.payloads.CouponValidity;
-import io.jsonwebtoken.Claims;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import java.security.cert.CertificateException;
-import java.util.Base64;
-import java.util.Date;
-import java.util.Set;
-
-import static java.util.stream.Collectors.toSet;
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * Used to oversee all coupons issued, exchanged and consumed in federations under this Symbiote Core
@@ -36,131 +54,472 @@ import static java.util.stream.Collectors.toSet;
 @Service
 public class IssuedCouponsRegistryManagementService {
 
+    private static Log log = LogFactory.getLog(IssuedCouponsRegistryManagementService.class);
+    private static final int DUPLICATE_KEY_ERROR_CODE = 11000;
+    private static final int FEDERATION_IDS_BATCH_SIZE = 1000;
+
     private final GlobalCouponsRegistry globalCouponsRegistry;
-    private final ComponentSecurityHandlerProvider componentSecurityHandlerProvider;
+    private final BtmCertificatesCache btmCertificatesCache;
+    private final MongoTemplate mongoTemplate;
+    private final CouponValidityCache couponValidityCache;
+    private final CouponRetentionPolicy couponRetentionPolicy;
+    private final PeriodicCouponsExpiryScheduler periodicCouponsExpiryScheduler;
+    private final int usageReportBatchSize;
+    private final int cleanupBatchSize;
+    private final long cleanupThrottle;
+    private final boolean cleanupEnabled;
+    private final long cleanupRetention;
 
     @Autowired
     public IssuedCouponsRegistryManagementService(GlobalCouponsRegistry globalCouponsRegistry,
-                                                  ComponentSecurityHandlerProvider componentSecurityHandlerProvider) {
+                                                  BtmCertificatesCache btmCertificatesCache,
+                                                  MongoTemplate mongoTemplate,
+                                                  CouponValidityCache couponValidityCache,
+                                                  CouponRetentionPolicy couponRetentionPolicy,
+                                                  PeriodicCouponsExpiryScheduler periodicCouponsExpiryScheduler,
+                                                  @Value("${btm.core.usageReport.batchSize:1000}") int usageReportBatchSize,
+                                                  @Value("${btm.core.cleanup.batchSize:1000}") int cleanupBatchSize,
+                                                  @Value("${btm.core.cleanup.throttle:0}") long cleanupThrottle,
+                                                  @Value("${btm.core.cleanup.enabled:false}") boolean cleanupEnabled,
+                                                  @Value("${btm.core.cleanup.retention:604800000}") long cleanupRetention) {
         this.globalCouponsRegistry = globalCouponsRegistry;
-        this.componentSecurityHandlerProvider = componentSecurityHandlerProvider;
+        this.btmCertificatesCache = btmCertificatesCache;
+        this.mongoTemplate = mongoTemplate;
+        this.couponValidityCache = couponValidityCache;
+        this.couponRetentionPolicy = couponRetentionPolicy;
+        this.periodicCouponsExpiryScheduler = periodicCouponsExpiryScheduler;
+        this.usageReportBatchSize = usageReportBatchSize;
+        this.cleanupBatchSize = cleanupBatchSize;
+        this.cleanupThrottle = cleanupThrottle;
+        this.cleanupEnabled = cleanupEnabled;
+        this.cleanupRetention = cleanupRetention;
     }
 
+    /**
+     * Removes the coupons consumed before the given timestamp. The coupons are removed in batches
+     * of their identifiers, so that neither the whole set of coupons is loaded, nor the registry is stalled.
+     *
+     * @param timestamp coupons consumed for the last time before it are removed
+     * @return number of the removed coupons
+     */
     public int cleanupConsumedCoupons(long timestamp) {
-        Set<String> deletedConsumedCouponsIdentifier =
-                globalCouponsRegistry.findAllByLastConsumptionTimestampBefore(timestamp)
-                        .stream()
-                        .filter(x -> x.getStatus().equals(CouponValidationStatus.CONSUMED_COUPON))
-                        .map(AccountingCoupon::getId).collect(toSet());
-        deletedConsumedCouponsIdentifier.forEach(globalCouponsRegistry::delete);
-        return deletedConsumedCouponsIdentifier.size();
+        Query consumedCouponsQuery = new Query(Criteria.where(AccountingCoupon.FIELD_STATUS).is(CouponValidationStatus.CONSUMED_COUPON)
+                .and(AccountingCoupon.FIELD_LAST_CONSUMPTION_TIMESTAMP).lt(timestamp))
+                .limit(cleanupBatchSize);
+        consumedCouponsQuery.fields().include(AccountingCoupon.FIELD_ID);
+        String collectionName = mongoTemplate.getCollectionName(AccountingCoupon.class);
+        int removed = 0;
+        List<Object> couponIds;
+        do {
+            couponIds = mongoTemplate.find(consumedCouponsQuery, DBObject.class, collectionName).stream()
+                    .map(coupon -> coupon.get(AccountingCoupon.FIELD_ID))
+                    .collect(Collectors.toList());
+            if (couponIds.isEmpty()) {
+                break;
+            }
+            removed += mongoTemplate.remove(new Query(Criteria.where(AccountingCoupon.FIELD_ID).in(couponIds)), AccountingCoupon.class).getN();
+            log.debug("Cleanup of the consumed coupons in progress, removed: " + removed);
+            if (couponIds.size() == cleanupBatchSize && cleanupThrottle > 0) {
+                try {
+                    Thread.sleep(cleanupThrottle);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.warn("Cleanup of the consumed coupons interrupted, removed: " + removed);
+                    break;
+                }
+            }
+        } while (couponIds.size() == cleanupBatchSize);
+        return removed;
     }
 
+    /**
+     * Periodically removes the coupons consumed earlier than the configured retention period.
+     */
+    @Scheduled(fixedDelayString = "${btm.core.cleanup.interval:3600000}")
+    public void cleanupConsumedCouponsInBackground() {
+        if (!cleanupEnabled)
+            return;
+        long startTime = System.currentTimeMillis();
+        int removed = cleanupConsumedCoupons(startTime - cleanupRetention);
+        log.info("Cleanup of the consumed coupons removed " + removed + " coupons in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Consumes the coupon using a single conditional atomic update of the registry. The update is guarded by
+     * the coupon status and its remaining usages/time, so concurrent consumptions can never exceed the allowed usage.
+     * The first use is stored by the same update using $min, as it is missing until the first consumption.
+     * The registry can't make the status change depend on the counter, so the last consumption of a DISCRETE coupon
+     * is guarded by its own usages predicate changing the status as well. The one matching the usages known from
+     * the hot coupons cache is applied and the other one only if it was not satisfied, so the consumption takes
+     * a single round trip unless the usages of the coupon are not cached or it can't be consumed at all.
+     *
+     * @param coupon to be consumed
+     * @return VALID if the coupon was consumed, otherwise the reason why it could not be consumed
+     */
     public CouponValidationStatus consumeCoupon(Coupon coupon) {
+        return consumeCoupon(new ParsedCoupon(coupon));
+    }
+
+    /**
+     * @param parsedCoupon to be consumed
+     * @return VALID if the coupon was consumed, otherwise the reason why it could not be consumed
+     * @see #consumeCoupon(Coupon)
+     */
+    public CouponValidationStatus consumeCoupon(ParsedCoupon parsedCoupon) {
         long actualTimeStamp = new Date().getTime();
-        CouponValidity couponValidity = isCouponValid(coupon);
-        if (!couponValidity.getStatus().equals(CouponValidationStatus.VALID)) {
-            return couponValidity.getStatus();
-        }
-        Claims claims = coupon.getClaims();
-        String registeredCouponId = AccountingCoupon.createIdFromNotification(claims.getId(), claims.getIssuer());
-        AccountingCoupon accountingCoupon = globalCouponsRegistry.findOne(registeredCouponId);
-        // firstUsage update
-        if (accountingCoupon.getFirstUseTimestamp() == 0) {
-            accountingCoupon.setFirstUseTimestamp(actualTimeStamp);
-        }
-        accountingCoupon.setLastConsumptionTimestamp(actualTimeStamp);
-        accountingCoupon.setUsagesCounter(accountingCoupon.getUsagesCounter() + 1);
-        //update of DISCRETE coupons status
-        if (accountingCoupon.getType().equals(Coupon.Type.DISCRETE) &&
-                accountingCoupon.getUsagesCounter() >= accountingCoupon.getMaximumAllowedUsage()) {
-            accountingCoupon.setStatus(CouponValidationStatus.CONSUMED_COUPON);
-        }
-        globalCouponsRegistry.save(accountingCoupon);
-        return couponValidity.getStatus();
-    }
-
-    public boolean registerCoupon(Coupon coupon) throws
-            MalformedJWTException,
-            CertificateException,
-            ValidationException,
-            BTMException,
-            SecurityHandlerException {
-
-        JWTClaims claims = JWTEngine.getClaimsFromToken(coupon.getCoupon());
-        //checking if coupon has proper fields
-        if (claims.getVal() == null
-                || claims.getVal().isEmpty()
-                || Long.parseLong(claims.getVal()) <= 0) {
-            throw new ValidationException("CouponEntity should contain 'val' claim greater than zero");
-        }
-        //checking issuer public key in core
-        Certificate btmCertificate = componentSecurityHandlerProvider.getComponentSecurityHandler().getSecurityHandler().getComponentCertificate("btm", claims.getIss());
-        if (!claims.getIpk().equals(Base64.getEncoder().encodeToString(btmCertificate.getX509().getPublicKey().getEncoded()))) {
-            throw new ValidationException("IPK from coupon doesn't match one fetched from core");
-        }
-        // check if id is not used
-        if (globalCouponsRegistry.exists(AccountingCoupon.createIdFromNotification(claims.getJti(), claims.getIss()))) {
-            throw new BTMException("CouponEntity with such id already exists.");
-        }
-        //save the coupon
-        globalCouponsRegistry.save(new AccountingCoupon(coupon.getCoupon()));
-        return true;
+        String registeredCouponId = parsedCoupon.getRegisteredCouponId();
+        long maximumAllowedUsage = parsedCoupon.getMaximumAllowedUsage();
+        boolean discrete = parsedCoupon.getType().equals(Coupon.Type.DISCRETE);
+        // cached usages are never more than the registry holds, so the last usage is never predicted too early
+        CouponValidityCache.CouponState couponState = couponValidityCache.get(registeredCouponId);
+        boolean lastUsage = discrete && (maximumAllowedUsage == 1
+                || couponState != null && couponState.getUsagesCounter() + 1 >= maximumAllowedUsage);
+        AccountingCoupon accountingCoupon = consume(parsedCoupon, actualTimeStamp, lastUsage);
+        if (accountingCoupon == null && discrete && !lastUsage) {
+            accountingCoupon = consume(parsedCoupon, actualTimeStamp, true);
+        }
+        if (accountingCoupon == null) {
+            // guard not satisfied, the hot coupons cache tells the reason without reading the coupon again
+            CouponValidity couponValidity = getCachedCouponValidity(parsedCoupon, registeredCouponId, actualTimeStamp);
+            if (couponValidity != null && !couponValidity.getStatus().equals(CouponValidationStatus.VALID)) {
+                return couponValidity.getStatus();
+            }
+            // otherwise the coupon is not registered as VALID with some usages left or the cached state is stale
+            couponValidityCache.invalidate(registeredCouponId);
+            return CouponValidationStatus.CONSUMED_COUPON;
+        }
+        couponValidityCache.update(accountingCoupon);
+        if (accountingCoupon.getType().equals(Coupon.Type.PERIODIC) && accountingCoupon.getUsagesCounter() == 1) {
+            // activated by this consumption
+            periodicCouponsExpiryScheduler.schedule(registeredCouponId, accountingCoupon.getFirstUseTimestamp() + accountingCoupon.getMaximumAllowedUsage());
+        }
+        return CouponValidationStatus.VALID;
+    }
+
+    /**
+     * @param lastUsage true to consume the last usage of a DISCRETE coupon, changing its status as well
+     * @return the consumed coupon or null if the guard of the consumption was not satisfied
+     */
+    private AccountingCoupon consume(ParsedCoupon parsedCoupon, long actualTimeStamp, boolean lastUsage) {
+        long maximumAllowedUsage = parsedCoupon.getMaximumAllowedUsage();
+        // coupon has to be registered, the same as in DB and still valid
+        Criteria guard = Criteria.where(AccountingCoupon.FIELD_ID).is(parsedCoupon.getRegisteredCouponId())
+                .and(AccountingCoupon.FIELD_COUPON_STRING).is(parsedCoupon.getCouponString())
+                .and(AccountingCoupon.FIELD_STATUS).is(CouponValidationStatus.VALID);
+        Update consumption = new Update()
+                .inc(AccountingCoupon.FIELD_USAGES_COUNTER, 1)
+                .set(AccountingCoupon.FIELD_LAST_CONSUMPTION_TIMESTAMP, actualTimeStamp)
+                .inc(AccountingCoupon.FIELD_USAGE_BUCKETS + "." + AccountingCoupon.getUsageBucket(actualTimeStamp), 1)
+                .min(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP, actualTimeStamp);
+        // and it has to have some usages or time left
+        if (parsedCoupon.getType().equals(Coupon.Type.DISCRETE)) {
+            if (lastUsage) {
+                guard.and(AccountingCoupon.FIELD_USAGES_COUNTER).is(maximumAllowedUsage - 1);
+                couponRetentionPolicy.updateStatus(consumption, CouponValidationStatus.CONSUMED_COUPON, actualTimeStamp);
+            } else {
+                guard.and(AccountingCoupon.FIELD_USAGES_COUNTER).lt(maximumAllowedUsage - 1);
+            }
+        } else {
+            guard.orOperator(
+                    Criteria.where(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP).exists(false),
+                    Criteria.where(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP).gte(actualTimeStamp - maximumAllowedUsage));
+        }
+        return mongoTemplate.findAndModify(
+                new Query(guard),
+                consumption,
+                new FindAndModifyOptions().returnNew(true),
+                AccountingCoupon.class);
+    }
+
+    /**
+     * Registers many coupons at once. Each coupon is validated separately (its issuer key is compared with the cached one)
+     * and the valid ones are inserted using a single unordered bulk insert, so that a rejected or duplicated coupon
+     * doesn't prevent the registration of the others.
+     *
+     * @param couponStrings coupons to be registered
+     * @return result of the registration of each coupon, in the order of the provided coupons
+     */
+    public List<CouponRegistrationResult> registerCoupons(List<String> couponStrings) {
+        List<CouponRegistrationResult> results = new ArrayList<>(couponStrings.size());
+        List<AccountingCoupon> accountingCoupons = new ArrayList<>(couponStrings.size());
+        // indexes of the inserted coupons in the results
+        List<Integer> insertedIndexes = new ArrayList<>(couponStrings.size());
+        for (String couponString : couponStrings) {
+            try {
+                ParsedCoupon parsedCoupon = ParsedCoupon.parse(couponString);
+                if (!parsedCoupon.hasValidity()) {
+                    throw new ValidationException("CouponEntity should contain 'val' claim greater than zero");
+                }
+                if (!btmCertificatesCache.matchesPublicKey(parsedCoupon.getIssuer(), parsedCoupon.getIssuerPublicKey())) {
+                    throw new ValidationException("IPK from coupon doesn't match one fetched from core");
+                }
+                insertedIndexes.add(results.size());
+                accountingCoupons.add(new AccountingCoupon(parsedCoupon));
+                results.add(CouponRegistrationResult.registered());
+            } catch (ValidationException | SecurityHandlerException | CertificateException | RuntimeException e) {
+                results.add(CouponRegistrationResult.rejected(e.getMessage()));
+            }
+        }
+        if (accountingCoupons.isEmpty()) {
+            return results;
+        }
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AccountingCoupon.class)
+                    .insert(accountingCoupons)
+                    .execute();
+        } catch (BulkOperationException e) {
+            // the rest of the coupons is inserted anyway
+            for (BulkWriteError error : e.getErrors()) {
+                results.set(insertedIndexes.get(error.getIndex()), CouponRegistrationResult.rejected(
+                        error.getCode() == DUPLICATE_KEY_ERROR_CODE ?
+                                "CouponEntity with such id already exists." :
+                                error.getMessage()));
+            }
+        }
+        return results;
     }
 
     public CouponValidity isCouponValid(Coupon coupon) {
+        return isCouponValid(new ParsedCoupon(coupon));
+    }
+
+    public CouponValidity isCouponValid(ParsedCoupon parsedCoupon) {
+        long actualTimeStamp = new Date().getTime();
+        String registeredCouponId = parsedCoupon.getRegisteredCouponId();
+        //checking the hot coupons cache first
+        CouponValidity couponValidity = getCachedCouponValidity(parsedCoupon, registeredCouponId, actualTimeStamp);
+        if (couponValidity != null) {
+            return couponValidity;
+        }
+        long cacheGeneration = couponValidityCache.getGeneration();
+        return resolveCouponValidity(parsedCoupon,
+                globalCouponsRegistry.findOne(registeredCouponId),
+                actualTimeStamp,
+                cacheGeneration);
+    }
+
+    /**
+     * Validates many coupons at once. Coupons not found in the hot coupons cache are fetched from the registry
+     * using a single query.
+     *
+     * @param coupons to be validated
+     * @return validity of each coupon, in the order of the provided coupons
+     */
+    public List<CouponValidity> areCouponsValid(List<ParsedCoupon> coupons) {
         long actualTimeStamp = new Date().getTime();
-        Claims claims = coupon.getClaims();
-        String registeredCouponId = AccountingCoupon.createIdFromNotification(claims.getId(), claims.getIssuer());
+        List<CouponValidity> couponValidities = new ArrayList<>(coupons.size());
+        List<String> registeredCouponIds = new ArrayList<>(coupons.size());
+        Set<String> notCachedCouponIds = new HashSet<>();
+        //checking the hot coupons cache first
+        for (ParsedCoupon coupon : coupons) {
+            String registeredCouponId = coupon.getRegisteredCouponId();
+            CouponValidity couponValidity = getCachedCouponValidity(coupon, registeredCouponId, actualTimeStamp);
+            if (couponValidity == null) {
+                notCachedCouponIds.add(registeredCouponId);
+            }
+            registeredCouponIds.add(registeredCouponId);
+            couponValidities.add(couponValidity);
+        }
+        if (notCachedCouponIds.isEmpty()) {
+            return couponValidities;
+        }
+        //fetching the rest from the registry in one go
+        long cacheGeneration = couponValidityCache.getGeneration();
+        Map<String, AccountingCoupon> registeredCoupons = new HashMap<>();
+        globalCouponsRegistry.findAll(notCachedCouponIds)
+                .forEach(accountingCoupon -> registeredCoupons.put(accountingCoupon.getId(), accountingCoupon));
+        for (int i = 0; i < coupons.size(); i++) {
+            if (couponValidities.get(i) == null) {
+                couponValidities.set(i, resolveCouponValidity(coupons.get(i),
+                        registeredCoupons.get(registeredCouponIds.get(i)),
+                        actualTimeStamp,
+                        cacheGeneration));
+            }
+        }
+        return couponValidities;
+    }
+
+    /**
+     * @return validity of the coupon based on its cached state or null if it has to be resolved using the registry
+     */
+    private CouponValidity getCachedCouponValidity(ParsedCoupon parsedCoupon, String registeredCouponId, long actualTimeStamp) {
+        CouponValidityCache.CouponState couponState = couponValidityCache.get(registeredCouponId);
+        if (couponState == null) {
+            return null;
+        }
+        if (!couponState.matches(parsedCoupon)) {
+            return new CouponValidity(CouponValidationStatus.DB_MISMATCH, Coupon.Type.NULL, 0, 0);
+        }
+        return couponState.getValidity(actualTimeStamp);
+    }
+
+    /**
+     * @param accountingCoupon registered coupon fetched from the registry or null if it was not found
+     * @param cacheGeneration  generation of the hot coupons cache captured before fetching the coupon
+     * @return validity of the coupon
+     */
+    private CouponValidity resolveCouponValidity(ParsedCoupon parsedCoupon,
+                                                 AccountingCoupon accountingCoupon,
+                                                 long actualTimeStamp,
+                                                 long cacheGeneration) {
         //checking, if coupon was registered
-        if (!globalCouponsRegistry.exists(registeredCouponId)) {
+        if (accountingCoupon == null) {
             return new CouponValidity(CouponValidationStatus.COUPON_NOT_REGISTERED, Coupon.Type.NULL, 0, 0);
         }
         //checking if coupon is the same as in DB
-        AccountingCoupon accountingCoupon = globalCouponsRegistry.findOne(registeredCouponId);
-        if (!accountingCoupon.getCouponString().equals(coupon.getCoupon())) {
+        if (!accountingCoupon.getCouponString().equals(parsedCoupon.getCouponString())) {
             return new CouponValidity(CouponValidationStatus.DB_MISMATCH, Coupon.Type.NULL, 0, 0);
         }
-        //update of the PERIODIC coupon status
-        if (accountingCoupon.getStatus().equals(CouponValidationStatus.VALID) &&
-                accountingCoupon.getType().equals(Coupon.Type.PERIODIC)) {
+        // the status of the expired PERIODIC coupons is updated by the expiry scheduler, here it is only computed
+        couponValidityCache.cache(accountingCoupon, cacheGeneration);
+        //checking status
+        return new CouponValidityCache.CouponState(accountingCoupon).getValidity(actualTimeStamp);
+    }
 
-            if (accountingCoupon.getFirstUseTimestamp() != 0 &&
-                    accountingCoupon.getFirstUseTimestamp() + accountingCoupon.getMaximumAllowedUsage() < actualTimeStamp) {
-                accountingCoupon.setStatus(CouponValidationStatus.CONSUMED_COUPON);
-                globalCouponsRegistry.save(accountingCoupon);
-            }
+    /**
+     * @return statistics of the Core BTM caches
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>(couponValidityCache.getStatistics());
+        statistics.putAll(btmCertificatesCache.getStatistics());
+        return statistics;
+    }
+
+    /**
+     * Reports the usage of the coupons matching the filter, using an aggregation over the registry
+     * which projects only the usage related fields of the coupons.
+     *
+     * @param request filter of the coupons (issuer, optionally federation and usage period)
+     * @param page    number of the page of the report to return or null to return the whole report
+     * @param size    size of the page
+     * @return usage of the coupons, ordered by their identifiers
+     */
+    public List<FilterResponse> getCouponUsage(FilterRequest request, Integer page, Integer size) {
+        Criteria criteria = Criteria.where(AccountingCoupon.FIELD_ISSUER).is(request.getPlatform());
+        if (request.getFederationId() != null) {
+            criteria.and(AccountingCoupon.FIELD_FEDERATION_ID).is(request.getFederationId());
         }
-        //checking status
-        switch (accountingCoupon.getStatus()) {
-            case VALID: {
-                if (accountingCoupon.getType().equals(Coupon.Type.DISCRETE)) {
-                    return new CouponValidity(CouponValidationStatus.VALID,
-                            accountingCoupon.getType(),
-                            accountingCoupon.getMaximumAllowedUsage() - accountingCoupon.getUsagesCounter(),
-                            0);
-                }
-                return new CouponValidity(CouponValidationStatus.VALID,
-                        accountingCoupon.getType(),
-                        0,
-                        accountingCoupon.getFirstUseTimestamp() == 0 ?
-                                accountingCoupon.getMaximumAllowedUsage() :
-                                accountingCoupon.getMaximumAllowedUsage() - (actualTimeStamp - accountingCoupon.getFirstUseTimestamp()));
+        boolean timeFiltered = request.getBeginTimestamp() != null;
+        long begin = timeFiltered ? request.getBeginTimestamp() : 0;
+        long end = timeFiltered && request.getEndTimestamp() != null ? request.getEndTimestamp() : Long.MAX_VALUE;
+        if (timeFiltered) {
+            // used between the first and the last consumption
+            criteria.and(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP).lt(end)
+                    .and(AccountingCoupon.FIELD_LAST_CONSUMPTION_TIMESTAMP).gte(begin);
+        }
+        if (page != null) {
+            return toFilterResponses(aggregateCouponUsage(criteria, (long) page * size, size), timeFiltered, begin, end);
+        }
+        // the whole report is aggregated in batches, using the last coupon id as the cursor
+        List<FilterResponse> filterResponses = new ArrayList<>();
+        List<CouponUsage> couponUsages;
+        String lastCouponId = null;
+        do {
+            Criteria batchCriteria = lastCouponId == null ?
+                    criteria :
+                    new Criteria().andOperator(criteria, Criteria.where(AccountingCoupon.FIELD_ID).gt(lastCouponId));
+            couponUsages = aggregateCouponUsage(batchCriteria, 0, usageReportBatchSize);
+            filterResponses.addAll(toFilterResponses(couponUsages, timeFiltered, begin, end));
+            if (!couponUsages.isEmpty()) {
+                lastCouponId = couponUsages.get(couponUsages.size() - 1).getId();
             }
-            default:
-                return new CouponValidity(accountingCoupon.getStatus(), Coupon.Type.NULL, 0, 0);
+        } while (couponUsages.size() == usageReportBatchSize);
+        return filterResponses;
+    }
+
+    private List<CouponUsage> aggregateCouponUsage(Criteria criteria, long skip, int limit) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(criteria),
+                Aggregation.sort(Sort.Direction.ASC, AccountingCoupon.FIELD_ID),
+                Aggregation.skip(skip),
+                Aggregation.limit(limit),
+                Aggregation.project(AccountingCoupon.FIELD_ISSUER,
+                        AccountingCoupon.FIELD_USAGES_COUNTER,
+                        AccountingCoupon.FIELD_USAGE_BUCKETS,
+                        AccountingCoupon.FIELD_USE_TIMESTAMP));
+        return mongoTemplate.aggregate(aggregation,
+                mongoTemplate.getCollectionName(AccountingCoupon.class),
+                CouponUsage.class).getMappedResults();
+    }
+
+    private static List<FilterResponse> toFilterResponses(List<CouponUsage> couponUsages, boolean timeFiltered, long begin, long end) {
+        List<FilterResponse> filterResponses = new ArrayList<>(couponUsages.size());
+        for (CouponUsage couponUsage : couponUsages) {
+            filterResponses.add(new FilterResponse(
+                    couponUsage.getId(),
+                    couponUsage.getIssuer(),
+                    timeFiltered ?
+                            couponUsage.getNumberOfUsedTimeFiltered(begin, end) :
+                            couponUsage.getUsagesCounter()));
         }
+        return filterResponses;
     }
-    public Set<AccountingCoupon> getCouponStats(FilterRequest request) {
-        if (/*request.federationId != null &&*/ request.beginTimestamp != null){
-            return globalCouponsRegistry.findAllByIssuerAndUseTimestampBetween(
-                    request.getPlatform(),
-                    request.getBeginTimestamp(),
-                    request.getEndTimestamp()
-            );
-        }else {
-            return globalCouponsRegistry.findAllByIssuer(request.getPlatform());
 
+    /**
+     * Removes the first use stored as 0 by the VALID coupons registered before it was missing until
+     * the first consumption, so that their consumption stores it.
+     */
+    @PostConstruct
+    public void removeUnsetFirstUseTimestamps() {
+        int updated = mongoTemplate.updateMulti(
+                new Query(Criteria.where(AccountingCoupon.FIELD_STATUS).is(CouponValidationStatus.VALID)
+                        .and(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP).is(0L)),
+                new Update().unset(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP),
+                AccountingCoupon.class).getN();
+        if (updated > 0) {
+            log.info("Removed unset first use of " + updated + " registered coupons");
+        }
+    }
+
+    /**
+     * Persists the federation identifier of the coupons registered before it was stored next to them.
+     * The coupons are read in batches of at most {@link #FEDERATION_IDS_BATCH_SIZE} coupons, ordered by their id,
+     * and each batch is updated using a single unordered bulk, so that neither the whole registry is loaded
+     * nor every coupon costs a round trip. Coupons whose federation id can't be read are logged and skipped.
+     */
+    @PostConstruct
+    public void storeMissingFederationIds() {
+        String collectionName = mongoTemplate.getCollectionName(AccountingCoupon.class);
+        int updated = 0;
+        Object lastCouponId = null;
+        List<DBObject> coupons;
+        do {
+            Criteria criteria = Criteria.where(AccountingCoupon.FIELD_FEDERATION_ID).exists(false);
+            if (lastCouponId != null) {
+                criteria.and(AccountingCoupon.FIELD_ID).gt(lastCouponId);
+            }
+            Query query = new Query(criteria)
+                    .with(new Sort(Sort.Direction.ASC, AccountingCoupon.FIELD_ID))
+                    .limit(FEDERATION_IDS_BATCH_SIZE);
+            query.fields().include(AccountingCoupon.FIELD_COUPON_STRING);
+            coupons = mongoTemplate.find(query, DBObject.class, collectionName);
+            BulkOperations bulkOperations = null;
+            int batched = 0;
+            for (DBObject coupon : coupons) {
+                lastCouponId = coupon.get(AccountingCoupon.FIELD_ID);
+                String federationId;
+                try {
+                    federationId = JWTEngine.getClaims((String) coupon.get(AccountingCoupon.FIELD_COUPON_STRING))
+                            .get(SecurityConstants.CLAIM_NAME_FEDERATION_ID, String.class);
+                } catch (Exception e) {
+                    log.warn("Federation id of the registered coupon " + lastCouponId + " could not be read", e);
+                    continue;
+                }
+                if (bulkOperations == null) {
+                    bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AccountingCoupon.class);
+                }
+                bulkOperations.updateOne(
+                        new Query(Criteria.where(AccountingCoupon.FIELD_ID).is(lastCouponId)),
+                        Update.update(AccountingCoupon.FIELD_FEDERATION_ID, federationId));
+                batched++;
+            }
+            if (bulkOperations != null) {
+                bulkOperations.execute();
+                updated += batched;
+            }
+        } while (coupons.size() == FEDERATION_IDS_BATCH_SIZE);
+        if (updated > 0) {
+            log.info("Stored federation id of " + updated + " registered coupons");
         }
     }
 }
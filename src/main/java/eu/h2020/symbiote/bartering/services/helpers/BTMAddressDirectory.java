@@ -0,0 +1,128 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import eu.h2020.symbiote.bartering.config.ComponentSecurityHandlerProvider;
+import eu.h2020.symbiote.security.commons.exceptions.custom.SecurityHandlerException;
+import eu.h2020.symbiote.security.communication.payloads.AAM;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Directory of the Bartering Trading Modules' addresses, resolved from the AAMs available in Symbiote.
+ * The directory is refreshed in the background, after its time to live passes, and on demand
+ * when the requested platform is missing.
+ */
+@Profile("platform")
+@Component
+public class BTMAddressDirectory {
+
+    private static final String AAM_SUFFIX = "/aam";
+    private static final String BTM_SUFFIX = "/btm";
+    private static Log log = LogFactory.getLog(BTMAddressDirectory.class);
+
+    private final ComponentSecurityHandlerProvider componentSecurityHandlerProvider;
+    private final String coreBTMAddress;
+    private final long timeToLive;
+    private final long minimumRefreshInterval;
+    private volatile Map<String, String> btmAddresses = Collections.emptyMap();
+    private volatile long refreshedAt = 0;
+
+    @Autowired
+    public BTMAddressDirectory(ComponentSecurityHandlerProvider componentSecurityHandlerProvider,
+                               @Value("${symbIoTe.core.interface.url}") String coreInterfaceAddress,
+                               @Value("${btm.addressDirectory.ttl:300000}") long timeToLive,
+                               @Value("${btm.addressDirectory.minimumRefreshInterval:5000}") long minimumRefreshInterval) {
+        this.componentSecurityHandlerProvider = componentSecurityHandlerProvider;
+        this.coreBTMAddress = toBTMAddress(coreInterfaceAddress);
+        this.timeToLive = timeToLive;
+        this.minimumRefreshInterval = minimumRefreshInterval;
+    }
+
+    /**
+     * @param aamAddress address of the AAM (or the interface exposing it)
+     * @return address of the Bartering Trading Module deployed next to the AAM
+     */
+    public static String toBTMAddress(String aamAddress) {
+        return (aamAddress.endsWith(AAM_SUFFIX)
+                ? aamAddress.substring(0, aamAddress.length() - AAM_SUFFIX.length())
+                : aamAddress)
+                + BTM_SUFFIX;
+    }
+
+    public String getCoreBTMAddress() {
+        return coreBTMAddress;
+    }
+
+    /**
+     * @param platformId identifier of the platform
+     * @return address of the platform's BTM or null if the platform is not registered in the Core AAM
+     * @throws SecurityHandlerException if the available AAMs could not be fetched
+     */
+    public String getBTMAddress(String platformId) throws
+            SecurityHandlerException {
+        if (System.currentTimeMillis() - refreshedAt > timeToLive) {
+            refreshIfOlderThan(timeToLive);
+        }
+        String btmAddress = btmAddresses.get(platformId);
+        // the platform could have been registered after the last refresh
+        if (btmAddress == null
+                && System.currentTimeMillis() - refreshedAt > minimumRefreshInterval) {
+            refreshIfOlderThan(minimumRefreshInterval);
+            btmAddress = btmAddresses.get(platformId);
+        }
+        return btmAddress;
+    }
+
+    /**
+     * Refreshes the directory unless it was refreshed by a concurrent caller in the meantime,
+     * so that only the first of the callers waiting for the refresh fetches the available AAMs.
+     */
+    private synchronized void refreshIfOlderThan(long age) throws
+            SecurityHandlerException {
+        if (System.currentTimeMillis() - refreshedAt > age) {
+            refresh();
+        }
+    }
+
+    /**
+     * Fetches the available AAMs and rebuilds the directory.
+     */
+    public synchronized void refresh() throws
+            SecurityHandlerException {
+        Map<String, AAM> availableAAMs = componentSecurityHandlerProvider.getComponentSecurityHandler().getSecurityHandler().getAvailableAAMs();
+        Map<String, String> refreshedBtmAddresses = new HashMap<>();
+        availableAAMs.forEach((platformId, aam) -> refreshedBtmAddresses.put(platformId, toBTMAddress(aam.getAamAddress())));
+        btmAddresses = Collections.unmodifiableMap(refreshedBtmAddresses);
+        refreshedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Keeps the already used directory fresh, so that requests don't wait for its refresh.
+     */
+    @Scheduled(fixedDelayString = "${btm.addressDirectory.refreshInterval:60000}")
+    public void refreshInBackground() {
+        if (btmAddresses.isEmpty())
+            return;
+        try {
+            refresh();
+        } catch (SecurityHandlerException | RuntimeException e) {
+            log.warn("Couldn't refresh the BTM address directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Clears the directory, the next request fetches the available AAMs again.
+     */
+    public synchronized void invalidate() {
+        btmAddresses = Collections.emptyMap();
+        refreshedAt = 0;
+    }
+}
@@ -0,0 +1,119 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import eu.h2020.symbiote.bartering.communication.BTMClient;
+import eu.h2020.symbiote.bartering.communication.CoreBTMClient;
+import eu.h2020.symbiote.bartering.config.ComponentSecurityHandlerProvider;
+import eu.h2020.symbiote.security.commons.exceptions.custom.SecurityHandlerException;
+import feign.Logger;
+import feign.Request;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of the clients used to communicate with the Core BTM and other platforms' BTMs, keyed by the remote BTM address.
+ * Clients are built once and reused until they are not used for longer than the configured idle timeout.
+ * Only the client instances are cached, their HTTP connections are not pooled. The timeouts and the logging level
+ * apply to the clients of the platforms' BTMs (see {@link BTMClient#BTMClient(String, Logger.Level, Request.Options)}),
+ * the Core BTM client is built by the security library's client factory with its own settings.
+ */
+@Profile("platform")
+@Component
+public class BTMClientsCache {
+
+    private static Log log = LogFactory.getLog(BTMClientsCache.class);
+
+    private final ComponentSecurityHandlerProvider componentSecurityHandlerProvider;
+    private final Request.Options options;
+    private final Logger.Level logLevel;
+    private final long idleTimeout;
+    private final ConcurrentMap<String, CachedClient<CoreBTMClient>> coreBTMClients = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CachedClient<BTMClient>> btmClients = new ConcurrentHashMap<>();
+
+    @Autowired
+    public BTMClientsCache(ComponentSecurityHandlerProvider componentSecurityHandlerProvider,
+                          @Value("${btm.clients.connectTimeout:5000}") int connectTimeout,
+                          @Value("${btm.clients.readTimeout:30000}") int readTimeout,
+                          @Value("${btm.clients.idleTimeout:300000}") long idleTimeout,
+                          @Value("${btm.clients.logLevel:BASIC}") Logger.Level logLevel) {
+        this.componentSecurityHandlerProvider = componentSecurityHandlerProvider;
+        this.options = new Request.Options(connectTimeout, readTimeout);
+        this.idleTimeout = idleTimeout;
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * @param coreBTMAddress address of the Core BTM
+     * @return client of the Core BTM, reused if already cached for that address
+     * @throws SecurityHandlerException if the client could not be built
+     */
+    public CoreBTMClient getCoreBTMClient(String coreBTMAddress) throws
+            SecurityHandlerException {
+        CachedClient<CoreBTMClient> cachedClient = coreBTMClients.get(coreBTMAddress);
+        if (cachedClient == null) {
+            CachedClient<CoreBTMClient> newClient = new CachedClient<>(
+                    new CoreBTMClient(coreBTMAddress, componentSecurityHandlerProvider.getComponentSecurityHandler()));
+            cachedClient = coreBTMClients.putIfAbsent(coreBTMAddress, newClient);
+            if (cachedClient == null) {
+                cachedClient = newClient;
+            }
+        }
+        return cachedClient.use();
+    }
+
+    /**
+     * @param btmAddress address of the remote platform BTM
+     * @return client of the remote BTM, reused if already cached for that address
+     */
+    public BTMClient getBTMClient(String btmAddress) {
+        return btmClients.computeIfAbsent(btmAddress,
+                address -> new CachedClient<>(new BTMClient(address, logLevel, options)))
+                .use();
+    }
+
+    /**
+     * Removes the clients which were not used for longer than the idle timeout.
+     */
+    @Scheduled(fixedDelayString = "${btm.clients.idleTimeout:300000}")
+    public void evictIdleClients() {
+        long idleSince = System.currentTimeMillis() - idleTimeout;
+        int evicted = evictIdleClients(coreBTMClients, idleSince) + evictIdleClients(btmClients, idleSince);
+        if (evicted > 0) {
+            log.debug("Evicted " + evicted + " idle BTM clients");
+        }
+    }
+
+    /**
+     * @return number of the cached clients
+     */
+    public int size() {
+        return coreBTMClients.size() + btmClients.size();
+    }
+
+    private static int evictIdleClients(ConcurrentMap<String, ? extends CachedClient<?>> clients, long idleSince) {
+        int sizeBefore = clients.size();
+        clients.values().removeIf(cachedClient -> cachedClient.lastUsed < idleSince);
+        return sizeBefore - clients.size();
+    }
+
+    private static class CachedClient<T> {
+        private final T client;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private CachedClient(T client) {
+            this.client = client;
+        }
+
+        private T use() {
+            lastUsed = System.currentTimeMillis();
+            return client;
+        }
+    }
+}
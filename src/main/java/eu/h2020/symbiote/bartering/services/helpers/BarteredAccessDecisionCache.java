@@ -0,0 +1,133 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import eu.h2020.symbiote.bartering.commons.ExpiringCache;
+import eu.h2020.symbiote.model.mim.Federation;
+import eu.h2020.symbiote.security.commons.Coupon;
+import eu.h2020.symbiote.security.communication.payloads.CouponValidity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional cache of the bartered access decisions, keyed by client platform, federation and coupon type.
+ * Allows repeated bartered access requests to be granted using the coupon received with the first one
+ * (consumed in the Core BTM if it is a local coupon, or within its remaining validity if it is a foreign one),
+ * instead of the full authorization chain. Invalidated on every federation change.
+ */
+@Profile("platform")
+@Component
+public class BarteredAccessDecisionCache extends AbstractMongoEventListener<Federation> {
+
+    private final ExpiringCache<String, Decision> cache;
+    private final long timeToLive;
+
+    @Autowired
+    public BarteredAccessDecisionCache(@Value("${btm.accessDecisionCache.size:0}") int size,
+                                       @Value("${btm.accessDecisionCache.ttl:60000}") long timeToLive) {
+        this.cache = new ExpiringCache<>(size, timeToLive);
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @return decision cached for the request or null if it has to be authorized using the full chain
+     */
+    public Decision get(String clientPlatform, String federationId, Coupon.Type couponType) {
+        return cache.get(getKey(clientPlatform, federationId, couponType));
+    }
+
+    /**
+     * Caches the decision based on the local coupon, which has to be consumed in the Core BTM on every reuse.
+     */
+    public void putLocalCoupon(String clientPlatform, String federationId, Coupon.Type couponType, String couponString) {
+        cache.put(getKey(clientPlatform, federationId, couponType), new Decision(couponString, true, Long.MAX_VALUE));
+    }
+
+    /**
+     * Caches the decision based on the foreign coupon, reusable within its validity remaining after the current request.
+     *
+     * @param couponValidity validity of the coupon confirmed by the Core BTM
+     */
+    public void putForeignCoupon(String clientPlatform, String federationId, Coupon.Type couponType, String couponString,
+                                 CouponValidity couponValidity) {
+        long now = System.currentTimeMillis();
+        long expiresAt = now + timeToLive;
+        long remainingUsages = Long.MAX_VALUE;
+        if (couponValidity.getType().equals(Coupon.Type.DISCRETE)) {
+            // the current request already used one of them
+            remainingUsages = couponValidity.getRemainingUsages() - 1;
+        } else {
+            expiresAt = Math.min(expiresAt, now + couponValidity.getRemainingTime());
+        }
+        if (remainingUsages <= 0 || expiresAt <= now)
+            return;
+        cache.put(getKey(clientPlatform, federationId, couponType), new Decision(couponString, false, remainingUsages), expiresAt);
+    }
+
+    public void invalidate(String clientPlatform, String federationId, Coupon.Type couponType) {
+        cache.invalidate(getKey(clientPlatform, federationId, couponType));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public Map<String, Long> getStatistics() {
+        return cache.getStatistics("accessDecisionCache");
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Federation> event) {
+        invalidateAll();
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Federation> event) {
+        invalidateAll();
+    }
+
+    private static String getKey(String clientPlatform, String federationId, Coupon.Type couponType) {
+        return clientPlatform + "|" + federationId + "|" + couponType;
+    }
+
+    /**
+     * Bartered access decision with the coupon it was based on
+     */
+    public static class Decision {
+        private final String couponString;
+        private final boolean localCoupon;
+        private final AtomicLong remainingUsages;
+
+        private Decision(String couponString, boolean localCoupon, long remainingUsages) {
+            this.couponString = couponString;
+            this.localCoupon = localCoupon;
+            this.remainingUsages = new AtomicLong(remainingUsages);
+        }
+
+        public String getCouponString() {
+            return couponString;
+        }
+
+        /**
+         * @return true if the coupon was issued by this platform and has to be consumed in the Core BTM
+         */
+        public boolean isLocalCoupon() {
+            return localCoupon;
+        }
+
+        /**
+         * Takes one usage of the foreign coupon.
+         *
+         * @return false if the coupon has no usages left
+         */
+        public boolean use() {
+            return remainingUsages.getAndDecrement() > 0;
+        }
+    }
+}
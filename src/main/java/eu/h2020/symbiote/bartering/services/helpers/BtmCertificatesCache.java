@@ -0,0 +1,118 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import eu.h2020.symbiote.bartering.commons.ExpiringCache;
+import eu.h2020.symbiote.bartering.config.ComponentSecurityHandlerProvider;
+import eu.h2020.symbiote.security.commons.Certificate;
+import eu.h2020.symbiote.security.commons.exceptions.custom.SecurityHandlerException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.security.cert.CertificateException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the platforms' BTM public keys, fetched from the Core AAM and kept Base64 encoded,
+ * so that coupons are compared against them without fetching and encoding the certificate on every registration.
+ * Entries expire after the configured time to live. A mismatching key makes the certificate be fetched again,
+ * so that a rotated certificate is picked up before the expiry, but at most once per platform within the refetch interval,
+ * in the meantime the mismatch is answered from the cache.
+ */
+@Profile("core")
+@Component
+public class BtmCertificatesCache {
+
+    private static final String BTM_COMPONENT_ID = "btm";
+
+    private final ComponentSecurityHandlerProvider componentSecurityHandlerProvider;
+    private final ExpiringCache<String, CachedPublicKey> cache;
+    private final long refetchInterval;
+    private final AtomicLong fetches = new AtomicLong();
+
+    @Autowired
+    public BtmCertificatesCache(ComponentSecurityHandlerProvider componentSecurityHandlerProvider,
+                                @Value("${btm.core.certificatesCache.size:1000}") int size,
+                                @Value("${btm.core.certificatesCache.ttl:3600000}") long timeToLive,
+                                @Value("${btm.core.certificatesCache.refetchInterval:60000}") long refetchInterval) {
+        this.componentSecurityHandlerProvider = componentSecurityHandlerProvider;
+        this.cache = new ExpiringCache<>(size, timeToLive);
+        this.refetchInterval = refetchInterval;
+    }
+
+    /**
+     * @param platformId      issuer of the coupon
+     * @param issuerPublicKey Base64 encoded public key from the coupon (ipk claim)
+     * @return true if the key is the one of the platform's BTM certificate
+     * @throws SecurityHandlerException if the certificate could not be fetched
+     * @throws CertificateException     if the fetched certificate is malformed
+     */
+    public boolean matchesPublicKey(String platformId, String issuerPublicKey) throws
+            SecurityHandlerException,
+            CertificateException {
+        CachedPublicKey cachedPublicKey = cache.get(platformId);
+        if (cachedPublicKey != null
+                && (cachedPublicKey.matches(issuerPublicKey) || !cachedPublicKey.isRefetchAllowed())) {
+            return cachedPublicKey.matches(issuerPublicKey);
+        }
+        return refetch(platformId).matches(issuerPublicKey);
+    }
+
+    /**
+     * Drops all the cached public keys, so that they are fetched again on the next registrations.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return statistics of the cache and number of the certificates fetched from the Core AAM
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = cache.getStatistics("btmCertificatesCache");
+        statistics.put("btmCertificatesCache.fetches", fetches.get());
+        return statistics;
+    }
+
+    /**
+     * Serialized, so that concurrent registrations of the same platform fetch its certificate once.
+     */
+    private synchronized CachedPublicKey refetch(String platformId) throws
+            SecurityHandlerException,
+            CertificateException {
+        CachedPublicKey cachedPublicKey = cache.get(platformId);
+        // fetched by a concurrent registration in the meantime
+        if (cachedPublicKey != null && !cachedPublicKey.isRefetchAllowed()) {
+            return cachedPublicKey;
+        }
+        fetches.incrementAndGet();
+        Certificate btmCertificate = componentSecurityHandlerProvider.getComponentSecurityHandler()
+                .getSecurityHandler()
+                .getComponentCertificate(BTM_COMPONENT_ID, platformId);
+        cachedPublicKey = new CachedPublicKey(
+                Base64.getEncoder().encodeToString(btmCertificate.getX509().getPublicKey().getEncoded()),
+                System.currentTimeMillis() + refetchInterval);
+        cache.put(platformId, cachedPublicKey);
+        return cachedPublicKey;
+    }
+
+    private static class CachedPublicKey {
+        private final String publicKey;
+        private final long refetchAllowedAt;
+
+        private CachedPublicKey(String publicKey, long refetchAllowedAt) {
+            this.publicKey = publicKey;
+            this.refetchAllowedAt = refetchAllowedAt;
+        }
+
+        private boolean matches(String issuerPublicKey) {
+            return publicKey.equals(issuerPublicKey);
+        }
+
+        private boolean isRefetchAllowed() {
+            return System.currentTimeMillis() >= refetchAllowedAt;
+        }
+    }
+}
@@ -91,6 +91,16 @@ public class CouponIssuer {
 
     public Coupon getCoupon(Coupon.Type couponType, String federationId)
             throws JWTCreationException {
+        Coupon coupon = buildCoupon(couponType, federationId);
+        couponsWallet.save(new CouponEntity(coupon));
+        return coupon;
+    }
+
+    /**
+     * Issues the coupon without saving it in the wallet.
+     */
+    public Coupon buildCoupon(Coupon.Type couponType, String federationId)
+            throws JWTCreationException {
         try {
             if (couponType.equals(Coupon.Type.NULL))
                 throw new InvalidArgumentsException("CouponEntity type can not be NULL.");
@@ -99,7 +109,7 @@ public class CouponIssuer {
             if (couponValidity < 1) {
                 throw new InvalidArgumentsException("CouponEntity with such validity would not be valid at all.");
             }
-            Coupon coupon = new Coupon(buildCouponJWS(
+            return new Coupon(buildCouponJWS(
                     couponType,
                     couponValidity,
                     appConfig.getPlatformIdentifier(),
@@ -107,8 +117,6 @@ public class CouponIssuer {
                     componentSecurityHandlerProvider.getComponentSecurityHandler().getLocalAAMCredentials().homeCredentials.certificate.getX509().getPublicKey(),
                     componentSecurityHandlerProvider.getComponentSecurityHandler().getLocalAAMCredentials().homeCredentials.privateKey
             ));
-            couponsWallet.save(new CouponEntity(coupon));
-            return coupon;
         } catch (Exception e) {
             log.error(e);
             throw new JWTCreationException(e);
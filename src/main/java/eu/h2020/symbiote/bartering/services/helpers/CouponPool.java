@@ -0,0 +1,196 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
+import eu.h2020.symbiote.bartering.communication.CoreBTMClient;
+import eu.h2020.symbiote.bartering.repositories.PooledCouponsRepository;
+import eu.h2020.symbiote.bartering.repositories.entities.PooledCoupon;
+import eu.h2020.symbiote.security.commons.Coupon;
+import eu.h2020.symbiote.security.commons.exceptions.custom.BTMException;
+import eu.h2020.symbiote.security.commons.exceptions.custom.InvalidArgumentsException;
+import eu.h2020.symbiote.security.commons.exceptions.custom.JWTCreationException;
+import eu.h2020.symbiote.security.commons.exceptions.custom.ValidationException;
+import eu.h2020.symbiote.security.commons.exceptions.custom.WrongCredentialsException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Pool of coupons issued by this platform and already registered in the Core BTM, kept per federation and coupon type.
+ * Pools falling below the low watermark are replenished up to the high watermark in the background,
+ * so that coupons for bartering can be handed out without signing and registering them on request.
+ * Pooled coupons are persisted until they are handed out and reloaded at startup, so that the coupons
+ * registered in the Core BTM are not lost on restart.
+ */
+@Profile("platform")
+@Component
+public class CouponPool {
+
+    private static Log log = LogFactory.getLog(CouponPool.class);
+
+    private final CouponIssuer couponIssuer;
+    private final PooledCouponsRepository pooledCouponsRepository;
+    private final boolean enabled;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final ConcurrentMap<String, Queue<Coupon>> pools = new ConcurrentHashMap<>();
+    private final Set<String> refilledPools = ConcurrentHashMap.newKeySet();
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "coupon-pool-refill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public CouponPool(CouponIssuer couponIssuer,
+                      PooledCouponsRepository pooledCouponsRepository,
+                      @Value("${btm.couponPool.enabled:false}") boolean enabled,
+                      @Value("${btm.couponPool.lowWatermark:2}") int lowWatermark,
+                      @Value("${btm.couponPool.highWatermark:10}") int highWatermark) {
+        this.couponIssuer = couponIssuer;
+        this.pooledCouponsRepository = pooledCouponsRepository;
+        this.enabled = enabled;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = Math.max(lowWatermark, highWatermark);
+    }
+
+    /**
+     * Reloads the coupons pooled before the restart.
+     */
+    @PostConstruct
+    public void reload() {
+        if (!enabled) {
+            return;
+        }
+        int reloaded = 0;
+        for (PooledCoupon pooledCoupon : pooledCouponsRepository.findAll()) {
+            try {
+                pools.computeIfAbsent(getPoolKey(pooledCoupon.getType(), pooledCoupon.getFederationId()), key -> new ConcurrentLinkedQueue<>())
+                        .add(new Coupon(pooledCoupon.getCouponString()));
+                reloaded++;
+            } catch (ValidationException | RuntimeException e) {
+                log.error("Couldn't reload pooled coupon: " + e.getMessage());
+                pooledCouponsRepository.delete(pooledCoupon.getId());
+            }
+        }
+        if (reloaded > 0) {
+            log.info("Coupon pool reloaded with " + reloaded + " coupons");
+        }
+    }
+
+    /**
+     * Takes a ready coupon from the pool and triggers its replenishment if needed.
+     *
+     * @param couponType    type of the coupon
+     * @param federationId  federation the coupon is issued for
+     * @param coreBTMClient client used to register replenished coupons in the Core BTM
+     * @return registered coupon or null if the pool is disabled or empty
+     */
+    public Coupon poll(Coupon.Type couponType, String federationId, CoreBTMClient coreBTMClient) {
+        if (!enabled) {
+            return null;
+        }
+        String poolKey = getPoolKey(couponType, federationId);
+        Queue<Coupon> pool = pools.computeIfAbsent(poolKey, key -> new ConcurrentLinkedQueue<>());
+        Coupon coupon = pool.poll();
+        if (coupon != null) {
+            try {
+                pooledCouponsRepository.delete(coupon.getId());
+            } catch (RuntimeException e) {
+                // still persisted, so it is not handed out now, but reloaded after a restart
+                log.error("Couldn't remove the coupon from the persisted pool: " + e.getMessage());
+                coupon = null;
+            }
+        }
+        if (pool.size() < lowWatermark
+                && refilledPools.add(poolKey)) {
+            try {
+                refillExecutor.execute(() -> {
+                    try {
+                        refill(couponType, federationId, coreBTMClient);
+                    } finally {
+                        refilledPools.remove(poolKey);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refilledPools.remove(poolKey);
+            }
+        }
+        return coupon;
+    }
+
+    /**
+     * Issues coupons until the pool reaches the high watermark and registers them in the Core BTM using a single request.
+     *
+     * @return number of the coupons added to the pool
+     */
+    public int refill(Coupon.Type couponType, String federationId, CoreBTMClient coreBTMClient) {
+        Queue<Coupon> pool = pools.computeIfAbsent(getPoolKey(couponType, federationId), key -> new ConcurrentLinkedQueue<>());
+        int missing = highWatermark - pool.size();
+        if (missing <= 0) {
+            return 0;
+        }
+        List<Coupon> coupons = new ArrayList<>(missing);
+        List<String> couponStrings = new ArrayList<>(missing);
+        try {
+            for (int i = 0; i < missing; i++) {
+                Coupon coupon = couponIssuer.buildCoupon(couponType, federationId);
+                coupons.add(coupon);
+                couponStrings.add(coupon.getCoupon());
+            }
+        } catch (JWTCreationException | RuntimeException e) {
+            log.error("Couldn't replenish the coupon pool: " + e.getMessage());
+            if (coupons.isEmpty()) {
+                return 0;
+            }
+        }
+        List<CouponRegistrationResult> results;
+        try {
+            results = coreBTMClient.registerCoupons(couponStrings);
+        } catch (InvalidArgumentsException | WrongCredentialsException | BTMException | RuntimeException e) {
+            log.error("Couldn't register pooled coupons, replenishment postponed: " + e.getMessage());
+            return 0;
+        }
+        List<Coupon> registeredCoupons = new ArrayList<>(coupons.size());
+        List<PooledCoupon> pooledCoupons = new ArrayList<>(coupons.size());
+        for (int i = 0; i < coupons.size() && i < results.size(); i++) {
+            if (!results.get(i).isRegistered()) {
+                log.error("Couldn't register pooled coupon: " + results.get(i).getErrorMessage());
+                continue;
+            }
+            registeredCoupons.add(coupons.get(i));
+            pooledCoupons.add(new PooledCoupon(coupons.get(i), federationId));
+        }
+        // persisted before they can be handed out, so that they are never handed out twice after a restart
+        pooledCouponsRepository.save(pooledCoupons);
+        pool.addAll(registeredCoupons);
+        return registeredCoupons.size();
+    }
+
+    /**
+     * @return number of the ready coupons in the pool
+     */
+    public int size(Coupon.Type couponType, String federationId) {
+        Queue<Coupon> pool = pools.get(getPoolKey(couponType, federationId));
+        return pool == null ? 0 : pool.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refillExecutor.shutdownNow();
+    }
+
+    private static String getPoolKey(Coupon.Type couponType, String federationId) {
+        return federationId + "|" + couponType;
+    }
+}
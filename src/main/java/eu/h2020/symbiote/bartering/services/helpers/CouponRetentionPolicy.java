@@ -0,0 +1,98 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
+import eu.h2020.symbiote.security.commons.enums.CouponValidationStatus;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Retention policy of the coupons which will never be valid again. Such coupons get the time they expire at,
+ * when they reach the final status, and are removed from the registry by Mongo using the TTL index
+ * managed by {@link eu.h2020.symbiote.bartering.config.CoreRegistryIndexes}.
+ * Negative retention keeps the coupons of the status in the registry until they are cleaned up explicitly.
+ */
+@Profile("core")
+@Component
+public class CouponRetentionPolicy {
+
+    private static Log log = LogFactory.getLog(CouponRetentionPolicy.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final Map<CouponValidationStatus, Long> retentions = new EnumMap<>(CouponValidationStatus.class);
+
+    @Autowired
+    public CouponRetentionPolicy(MongoTemplate mongoTemplate,
+                                 @Value("${btm.core.retention.consumed:-1}") long consumedRetention,
+                                 @Value("${btm.core.retention.revoked:-1}") long revokedRetention) {
+        this.mongoTemplate = mongoTemplate;
+        if (consumedRetention >= 0)
+            retentions.put(CouponValidationStatus.CONSUMED_COUPON, consumedRetention);
+        if (revokedRetention >= 0)
+            retentions.put(CouponValidationStatus.REVOKED_COUPON, revokedRetention);
+    }
+
+    /**
+     * Sets the expiry of the coupons which reached the final status before the retention was enabled.
+     */
+    @PostConstruct
+    public void storeMissingExpiries() {
+        retentions.keySet().forEach(status -> {
+            int updated = mongoTemplate.updateMulti(
+                    new Query(Criteria.where(AccountingCoupon.FIELD_STATUS).is(status)
+                            .and(AccountingCoupon.FIELD_EXPIRE_AT).exists(false)),
+                    Update.update(AccountingCoupon.FIELD_EXPIRE_AT, getExpireAt(status, System.currentTimeMillis())),
+                    AccountingCoupon.class).getN();
+            if (updated > 0)
+                log.info("Expiry set for " + updated + " coupons with status " + status);
+        });
+    }
+
+    /**
+     * @param status    the coupon has just been changed to
+     * @param timestamp of the status change
+     * @return time the coupon expires at or null if it is retained in the registry
+     */
+    public Date getExpireAt(CouponValidationStatus status, long timestamp) {
+        Long retention = retentions.get(status);
+        return retention == null ? null : new Date(timestamp + retention);
+    }
+
+    /**
+     * Changes the status of the coupon along with its expiry.
+     */
+    public void setStatus(AccountingCoupon accountingCoupon, CouponValidationStatus status, long timestamp) {
+        accountingCoupon.setStatus(status);
+        accountingCoupon.setExpireAt(getExpireAt(status, timestamp));
+    }
+
+    /**
+     * @return atomic update changing the status of the coupon along with its expiry
+     */
+    public Update updateStatus(CouponValidationStatus status, long timestamp) {
+        return updateStatus(new Update(), status, timestamp);
+    }
+
+    /**
+     * @return the given atomic update, extended with the change of the status of the coupon along with its expiry
+     */
+    public Update updateStatus(Update update, CouponValidationStatus status, long timestamp) {
+        update.set(AccountingCoupon.FIELD_STATUS, status);
+        Date expireAt = getExpireAt(status, timestamp);
+        return expireAt == null ?
+                update.unset(AccountingCoupon.FIELD_EXPIRE_AT) :
+                update.set(AccountingCoupon.FIELD_EXPIRE_AT, expireAt);
+    }
+}
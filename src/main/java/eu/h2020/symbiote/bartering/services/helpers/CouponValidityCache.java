@@ -0,0 +1,175 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.bartering.commons.ExpiringCache;
+import eu.h2020.symbiote.bartering.commons.ParsedCoupon;
+import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
+import eu.h2020.symbiote.security.commons.Coupon;
+import eu.h2020.symbiote.security.commons.enums.CouponValidationStatus;
+import eu.h2020.symbiote.security.communication.payloads.CouponValidity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * In-memory cache of the validity state of the coupons registered in the Core BTM,
+ * allowing to answer repeated validity checks of hot coupons without reaching the {@link eu.h2020.symbiote.bartering.repositories.GlobalCouponsRegistry}.
+ * Entries are invalidated on every save/delete of an {@link AccountingCoupon} done through the repository
+ * (e.g. revocation, cleanup) and have to be updated/invalidated explicitly on atomic updates of the registry.
+ */
+@Profile("core")
+@Component
+public class CouponValidityCache extends AbstractMongoEventListener<AccountingCoupon> {
+
+    private final ExpiringCache<String, CouponState> cache;
+
+    @Autowired
+    public CouponValidityCache(@Value("${btm.core.couponValidityCache.size:10000}") int size,
+                               @Value("${btm.core.couponValidityCache.ttl:30000}") long timeToLive) {
+        this.cache = new ExpiringCache<>(size, timeToLive);
+    }
+
+    /**
+     * @param registeredCouponId id of the coupon in the registry
+     * @return cached state or null if the coupon is not cached
+     */
+    public CouponState get(String registeredCouponId) {
+        return cache.get(registeredCouponId);
+    }
+
+    /**
+     * @return generation to be passed to {@link #cache(AccountingCoupon, long)} after loading the coupon from the registry
+     */
+    public long getGeneration() {
+        return cache.getGeneration();
+    }
+
+    /**
+     * Caches the state of the coupon loaded from the registry, unless it was invalidated in the meantime.
+     */
+    public void cache(AccountingCoupon accountingCoupon, long generation) {
+        cache.putIfNotInvalidated(accountingCoupon.getId(), new CouponState(accountingCoupon), generation);
+    }
+
+    /**
+     * Updates the cached state with the one returned by an atomic update of the registry.
+     * Older states (returned by concurrent updates finished later) never overwrite newer ones.
+     */
+    public void update(AccountingCoupon accountingCoupon) {
+        CouponState updatedState = new CouponState(accountingCoupon);
+        cache.updateIfPresent(accountingCoupon.getId(),
+                cachedState -> cachedState.usagesCounter > updatedState.usagesCounter ? cachedState : updatedState);
+    }
+
+    public void invalidate(String registeredCouponId) {
+        cache.invalidate(registeredCouponId);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public Map<String, Long> getStatistics() {
+        return cache.getStatistics("couponValidityCache");
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<AccountingCoupon> event) {
+        invalidate(event.getSource().getId());
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<AccountingCoupon> event) {
+        DBObject query = event.getDBObject();
+        Object id = query == null ? null : query.get(AccountingCoupon.FIELD_ID);
+        if (id instanceof String) {
+            invalidate((String) id);
+            return;
+        }
+        // deleted in batches (e.g. cleanup) by {_id: {$in: [...]}}
+        if (id instanceof DBObject && ((DBObject) id).get("$in") instanceof Collection) {
+            ((Collection<?>) ((DBObject) id).get("$in")).forEach(deletedId -> invalidate(String.valueOf(deletedId)));
+            return;
+        }
+        // deleted by an arbitrary query
+        invalidateAll();
+    }
+
+    /**
+     * Validity related state of a registered coupon
+     */
+    public static class CouponState {
+        private final byte[] couponDigest;
+        private final Coupon.Type type;
+        private final CouponValidationStatus status;
+        private final long maximumAllowedUsage;
+        private final long usagesCounter;
+        private final long firstUseTimestamp;
+
+        public CouponState(AccountingCoupon accountingCoupon) {
+            this.couponDigest = ParsedCoupon.digest(accountingCoupon.getCouponString());
+            this.type = accountingCoupon.getType();
+            this.status = accountingCoupon.getStatus();
+            this.maximumAllowedUsage = accountingCoupon.getMaximumAllowedUsage();
+            this.usagesCounter = accountingCoupon.getUsagesCounter();
+            this.firstUseTimestamp = accountingCoupon.getFirstUseTimestamp();
+        }
+
+        /**
+         * @return true if the given coupon is the same as the registered one
+         */
+        public boolean matches(ParsedCoupon parsedCoupon) {
+            return MessageDigest.isEqual(couponDigest, parsedCoupon.getCouponDigest());
+        }
+
+        /**
+         * @return number of the consumptions of the coupon, never more than the registry holds
+         */
+        public long getUsagesCounter() {
+            return usagesCounter;
+        }
+
+        /**
+         * @return true if the PERIODIC coupon is still marked as VALID, but its validity period has already ended
+         */
+        public boolean isPeriodExceeded(long timestamp) {
+            return status.equals(CouponValidationStatus.VALID)
+                    && type.equals(Coupon.Type.PERIODIC)
+                    && firstUseTimestamp != 0
+                    && firstUseTimestamp + maximumAllowedUsage < timestamp;
+        }
+
+        /**
+         * @return validity of the coupon at the given time
+         */
+        public CouponValidity getValidity(long timestamp) {
+            if (!status.equals(CouponValidationStatus.VALID)) {
+                return new CouponValidity(status, Coupon.Type.NULL, 0, 0);
+            }
+            // not yet moved to CONSUMED by the expiry scheduler
+            if (isPeriodExceeded(timestamp)) {
+                return new CouponValidity(CouponValidationStatus.CONSUMED_COUPON, Coupon.Type.NULL, 0, 0);
+            }
+            if (type.equals(Coupon.Type.DISCRETE)) {
+                return new CouponValidity(CouponValidationStatus.VALID,
+                        type,
+                        maximumAllowedUsage - usagesCounter,
+                        0);
+            }
+            return new CouponValidity(CouponValidationStatus.VALID,
+                    type,
+                    0,
+                    firstUseTimestamp == 0 ?
+                            maximumAllowedUsage :
+                            maximumAllowedUsage - (timestamp - firstUseTimestamp));
+        }
+    }
+}
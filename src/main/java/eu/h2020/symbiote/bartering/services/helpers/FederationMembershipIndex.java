@@ -0,0 +1,99 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.bartering.repositories.FederationsRepository;
+import eu.h2020.symbiote.model.mim.Federation;
+import eu.h2020.symbiote.model.mim.FederationMember;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory index of the federations' member platforms, warmed up at startup and kept up to date
+ * on every save/delete of a {@link Federation} (e.g. done by the federation management requests consumer).
+ * Federations missing in the index are looked up in the {@link FederationsRepository}.
+ */
+@Profile("platform")
+@Component
+public class FederationMembershipIndex extends AbstractMongoEventListener<Federation> {
+
+    private static Log log = LogFactory.getLog(FederationMembershipIndex.class);
+
+    private final FederationsRepository federationsRepository;
+    private final ConcurrentMap<String, Set<String>> federationMembers = new ConcurrentHashMap<>();
+    private final AtomicLong deletions = new AtomicLong();
+
+    @Autowired
+    public FederationMembershipIndex(FederationsRepository federationsRepository) {
+        this.federationsRepository = federationsRepository;
+    }
+
+    @PostConstruct
+    public void warmUp() {
+        federationsRepository.findAll().forEach(this::index);
+        log.info("Federation membership index warmed up with " + federationMembers.size() + " federations");
+    }
+
+    /**
+     * @param federationId identifier of the federation
+     * @return platform identifiers of the federation members or null if the federation doesn't exist
+     */
+    public Set<String> getMembers(String federationId) {
+        Set<String> members = federationMembers.get(federationId);
+        if (members != null) {
+            return members;
+        }
+        long deletionsBeforeLookup = deletions.get();
+        Federation federation = federationsRepository.findOne(federationId);
+        if (federation == null) {
+            return null;
+        }
+        members = index(federation);
+        // federation deleted concurrently with the lookup must not stay in the index
+        if (deletions.get() != deletionsBeforeLookup) {
+            federationMembers.remove(federationId);
+        }
+        return members;
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Federation> event) {
+        index(event.getSource());
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Federation> event) {
+        deletions.incrementAndGet();
+        DBObject query = event.getDBObject();
+        Object id = query == null ? null : query.get("_id");
+        if (id instanceof String) {
+            federationMembers.remove(id);
+            return;
+        }
+        // deleted by an arbitrary query, missing federations are looked up in the repository
+        federationMembers.clear();
+    }
+
+    private Set<String> index(Federation federation) {
+        Set<String> members = federation.getMembers() == null ?
+                Collections.emptySet() :
+                Collections.unmodifiableSet(federation.getMembers().stream()
+                        .map(FederationMember::getPlatformId)
+                        .collect(Collectors.toSet()));
+        federationMembers.put(federation.getId(), members);
+        return members;
+    }
+}
@@ -0,0 +1,158 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
+import eu.h2020.symbiote.security.commons.Coupon;
+import eu.h2020.symbiote.security.commons.enums.CouponValidationStatus;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Moves the PERIODIC coupons to the CONSUMED status once their validity period ends. Expiry instants of the
+ * activated coupons are kept in a priority queue, rebuilt from the registry at startup and fed by every
+ * activation, and the expired coupons are updated in batches in the background.
+ * Validity checks only compute the status of the coupons, so they never write to the registry.
+ */
+@Profile("core")
+@Component
+public class PeriodicCouponsExpiryScheduler extends AbstractMongoEventListener<AccountingCoupon> {
+
+    private static Log log = LogFactory.getLog(PeriodicCouponsExpiryScheduler.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final CouponValidityCache couponValidityCache;
+    private final CouponRetentionPolicy couponRetentionPolicy;
+    private final int batchSize;
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(Comparator.comparingLong(expiry -> expiry.expiresAt));
+
+    @Autowired
+    public PeriodicCouponsExpiryScheduler(MongoTemplate mongoTemplate,
+                                          CouponValidityCache couponValidityCache,
+                                          CouponRetentionPolicy couponRetentionPolicy,
+                                          @Value("${btm.core.expiry.batchSize:1000}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.couponValidityCache = couponValidityCache;
+        this.couponRetentionPolicy = couponRetentionPolicy;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Schedules the expiry of all activated PERIODIC coupons which are still valid.
+     */
+    @PostConstruct
+    public void rebuild() {
+        Query activatedCouponsQuery = new Query(Criteria.where(AccountingCoupon.FIELD_TYPE).is(Coupon.Type.PERIODIC)
+                .and(AccountingCoupon.FIELD_STATUS).is(CouponValidationStatus.VALID)
+                .and(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP).gt(0L));
+        activatedCouponsQuery.fields()
+                .include(AccountingCoupon.FIELD_ID)
+                .include(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP)
+                .include(AccountingCoupon.FIELD_MAXIMUM_ALLOWED_USAGE);
+        // streamed using a cursor, so that only the expiries are kept in memory
+        int scheduled = 0;
+        try (CloseableIterator<DBObject> activatedCoupons = mongoTemplate.stream(activatedCouponsQuery, DBObject.class,
+                mongoTemplate.getCollectionName(AccountingCoupon.class))) {
+            while (activatedCoupons.hasNext()) {
+                DBObject coupon = activatedCoupons.next();
+                schedule((String) coupon.get(AccountingCoupon.FIELD_ID),
+                        ((Number) coupon.get(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP)).longValue()
+                                + ((Number) coupon.get(AccountingCoupon.FIELD_MAXIMUM_ALLOWED_USAGE)).longValue());
+                scheduled++;
+            }
+        }
+        log.info("Expiry scheduled for " + scheduled + " activated PERIODIC coupons");
+    }
+
+    /**
+     * @param registeredCouponId id of the activated PERIODIC coupon
+     * @param expiresAt          end of the coupon validity period
+     */
+    public synchronized void schedule(String registeredCouponId, long expiresAt) {
+        expiries.add(new Expiry(registeredCouponId, expiresAt));
+    }
+
+    /**
+     * @return number of the scheduled expiries
+     */
+    public synchronized int size() {
+        return expiries.size();
+    }
+
+    /**
+     * Moves the coupons whose validity period has ended to the CONSUMED status.
+     *
+     * @return number of the expired coupons
+     */
+    @Scheduled(fixedDelayString = "${btm.core.expiry.interval:1000}")
+    public int expireDueCoupons() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        List<Expiry> dueExpiries;
+        while (!(dueExpiries = pollDue(now)).isEmpty()) {
+            List<String> dueCouponIds = new ArrayList<>(dueExpiries.size());
+            dueExpiries.forEach(expiry -> dueCouponIds.add(expiry.registeredCouponId));
+            try {
+                expired += mongoTemplate.updateMulti(
+                        new Query(Criteria.where(AccountingCoupon.FIELD_ID).in(dueCouponIds)
+                                .and(AccountingCoupon.FIELD_STATUS).is(CouponValidationStatus.VALID)),
+                        couponRetentionPolicy.updateStatus(CouponValidationStatus.CONSUMED_COUPON, now),
+                        AccountingCoupon.class).getN();
+            } catch (RuntimeException e) {
+                log.warn("Couldn't expire the PERIODIC coupons, retrying in the next run: " + e.getMessage());
+                dueExpiries.forEach(expiry -> schedule(expiry.registeredCouponId, expiry.expiresAt));
+                break;
+            }
+            dueCouponIds.forEach(couponValidityCache::invalidate);
+        }
+        if (expired > 0)
+            log.debug("Expired " + expired + " PERIODIC coupons");
+        return expired;
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<AccountingCoupon> event) {
+        AccountingCoupon accountingCoupon = event.getSource();
+        if (accountingCoupon.getType().equals(Coupon.Type.PERIODIC)
+                && accountingCoupon.getStatus().equals(CouponValidationStatus.VALID)
+                && accountingCoupon.getFirstUseTimestamp() != 0) {
+            schedule(accountingCoupon.getId(), accountingCoupon.getFirstUseTimestamp() + accountingCoupon.getMaximumAllowedUsage());
+        }
+    }
+
+    private synchronized List<Expiry> pollDue(long timestamp) {
+        List<Expiry> dueExpiries = new ArrayList<>();
+        while (dueExpiries.size() < batchSize
+                && !expiries.isEmpty()
+                && expiries.peek().expiresAt < timestamp) {
+            dueExpiries.add(expiries.poll());
+        }
+        return dueExpiries;
+    }
+
+    private static class Expiry {
+        private final String registeredCouponId;
+        private final long expiresAt;
+
+        private Expiry(String registeredCouponId, long expiresAt) {
+            this.registeredCouponId = registeredCouponId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package eu.h2020.symbiote.bartering.services.helpers;
 
+import eu.h2020.symbiote.bartering.commons.ParsedCoupon;
 import eu.h2020.symbiote.bartering.repositories.GlobalCouponsRegistry;
 import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
 import eu.h2020.symbiote.security.commons.enums.CouponValidationStatus;
 import eu.h2020.symbiote.security.commons.enums.ValidationStatus;
 import eu.h2020.symbiote.security.commons.exceptions.custom.MalformedJWTException;
 import eu.h2020.symbiote.security.commons.exceptions.custom.ValidationException;
-import eu.h2020.symbiote.security.commons.jwt.JWTClaims;
 import eu.h2020.symbiote.security.commons.jwt.JWTEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,11 +26,14 @@ public class RevocationHelper {
     private static final Logger log = LoggerFactory.getLogger(RevocationHelper.class);
 
     private final GlobalCouponsRegistry globalCouponsRegistry;
+    private final CouponRetentionPolicy couponRetentionPolicy;
 
 
     @Autowired
-    public RevocationHelper(GlobalCouponsRegistry globalCouponsRegistry) {
+    public RevocationHelper(GlobalCouponsRegistry globalCouponsRegistry,
+                            CouponRetentionPolicy couponRetentionPolicy) {
         this.globalCouponsRegistry = globalCouponsRegistry;
+        this.couponRetentionPolicy = couponRetentionPolicy;
     }
 
     /**
@@ -42,15 +45,15 @@ public class RevocationHelper {
         if (JWTEngine.validateTokenString(coupon) != ValidationStatus.VALID) {
             throw new ValidationException("Received coupon is not valid.");
         }
-        JWTClaims couponClaims = JWTEngine.getClaimsFromToken(coupon);
-        if (!globalCouponsRegistry.exists(AccountingCoupon.createIdFromNotification(couponClaims.getJti(), couponClaims.getIss()))) {
+        ParsedCoupon parsedCoupon = ParsedCoupon.parse(coupon);
+        AccountingCoupon accountingCoupon = globalCouponsRegistry.findOne(parsedCoupon.getRegisteredCouponId());
+        if (accountingCoupon == null) {
             log.error("CouponEntity doesn't exist in issued coupons repository!");
             return false;
         }
-        AccountingCoupon accountingCoupon = globalCouponsRegistry.findOne(AccountingCoupon.createIdFromNotification(couponClaims.getJti(), couponClaims.getIss()));
-        accountingCoupon.setStatus(CouponValidationStatus.REVOKED_COUPON);
+        couponRetentionPolicy.setStatus(accountingCoupon, CouponValidationStatus.REVOKED_COUPON, System.currentTimeMillis());
         globalCouponsRegistry.save(accountingCoupon);
-        log.debug("CouponEntity: %s was revoked succesfully", couponClaims.getJti());
+        log.debug("CouponEntity: {} was revoked succesfully", parsedCoupon.getId());
         return true;
 
     }
@@ -0,0 +1,214 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.bartering.listeners.amqp.AmqpMessageCodec;
+import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental feed of the changed trust entries, so that dependent components are synchronized with the changes only.
+ * Every applied change gets the next number of a sequence kept in the registry (see {@link #reserveSequence(int)}),
+ * so the feed doesn't depend on the change times assigned by the Trust Manager. The feed is paged by the sequence
+ * number of the last returned entry and backed by an index created at startup. The changes can optionally
+ * be published periodically, each sync continuing from the persisted position reached by the previous one.
+ * They are published with their own routing key, which must differ from the one of the trust entry updates
+ * consumed by the BTM.
+ */
+@Profile("platform")
+@Component
+public class TrustEntriesChangeFeed {
+
+    public static final String FIELD_CHANGE_SEQUENCE = "changeSequence";
+    private static final String FIELD_ID = "_id";
+    private static final String FIELD_TYPE = "type";
+    private static final String FIELD_LAST_UPDATE = "lastUpdate";
+    private static final String STATE_COLLECTION = "trustEntriesChangeFeed";
+    private static final String SEQUENCE_ID = "sequence";
+    private static final String SYNC_POSITION_ID = "syncPosition";
+    private static final String FIELD_VALUE = "value";
+    private static Log log = LogFactory.getLog(TrustEntriesChangeFeed.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final AmqpTemplate amqpTemplate;
+    private final AmqpMessageCodec amqpMessageCodec;
+    private final boolean syncEnabled;
+    private final String syncExchange;
+    private final String syncRoutingKey;
+    private final int pageSize;
+    private Position syncPosition = Position.START;
+
+    @Autowired
+    public TrustEntriesChangeFeed(MongoTemplate mongoTemplate,
+                                  AmqpTemplate amqpTemplate,
+                                  AmqpMessageCodec amqpMessageCodec,
+                                  @Value("${trust.sync.enabled:false}") boolean syncEnabled,
+                                  @Value("${rabbit.exchange.TrustEntry.sync:symbIoTe.TrustEntry}") String syncExchange,
+                                  @Value("${rabbit.routingKey.TrustEntry.sync:symbIoTe.TrustEntry.sync}") String syncRoutingKey,
+                                  @Value("${rabbit.exchange.TrustEntry.update}") String updateExchange,
+                                  @Value("${rabbit.routingKey.TrustEntry.update}") String updateRoutingKey,
+                                  @Value("${trust.sync.pageSize:500}") int pageSize) {
+        // the BTM would consume its own published changes
+        if (syncEnabled && syncExchange.equals(updateExchange) && syncRoutingKey.equals(updateRoutingKey)) {
+            throw new IllegalArgumentException("Trust entries sync can't be published with the routing key of the consumed trust entry updates");
+        }
+        this.mongoTemplate = mongoTemplate;
+        this.amqpTemplate = amqpTemplate;
+        this.amqpMessageCodec = amqpMessageCodec;
+        this.syncEnabled = syncEnabled;
+        this.syncExchange = syncExchange;
+        this.syncRoutingKey = syncRoutingKey;
+        this.pageSize = pageSize;
+    }
+
+    @PostConstruct
+    public void createIndexes() {
+        // change feed
+        mongoTemplate.indexOps(TrustEntry.class).ensureIndex(new Index()
+                .named(FIELD_CHANGE_SEQUENCE)
+                .on(FIELD_CHANGE_SEQUENCE, Sort.Direction.ASC)
+                .background());
+        // entries of the type updated after the given time (TrustRepository.findEntriesUpdatedAfter)
+        mongoTemplate.indexOps(TrustEntry.class).ensureIndex(new Index()
+                .named("type_lastUpdate")
+                .on(FIELD_TYPE, Sort.Direction.ASC)
+                .on(FIELD_LAST_UPDATE, Sort.Direction.ASC)
+                .background());
+    }
+
+    /**
+     * Loads the position reached by the previous syncs.
+     */
+    @PostConstruct
+    public synchronized void loadSyncPosition() {
+        DBObject position = mongoTemplate.findById(SYNC_POSITION_ID, DBObject.class, STATE_COLLECTION);
+        if (position != null)
+            syncPosition = new Position(((Number) position.get(FIELD_VALUE)).longValue());
+    }
+
+    /**
+     * Reserves the sequence numbers of the given number of changes, in the order they are applied in.
+     *
+     * @param count number of the changes
+     * @return the first of the reserved sequence numbers
+     */
+    public long reserveSequence(int count) {
+        DBObject sequence = mongoTemplate.findAndModify(
+                new Query(Criteria.where(FIELD_ID).is(SEQUENCE_ID)),
+                new Update().inc(FIELD_VALUE, (long) count),
+                new FindAndModifyOptions().returnNew(true).upsert(true),
+                DBObject.class,
+                STATE_COLLECTION);
+        return ((Number) sequence.get(FIELD_VALUE)).longValue() - count + 1;
+    }
+
+    /**
+     * @param after position of the last entry already seen ({@link Position#START} for the first page)
+     * @param limit maximum number of the returned entries
+     * @return entries changed after the given position, in the order of the changes
+     */
+    public Changes getChanges(Position after, int limit) {
+        Query query = new Query(Criteria.where(FIELD_CHANGE_SEQUENCE).gt(after.sequence))
+                .with(new Sort(Sort.Direction.ASC, FIELD_CHANGE_SEQUENCE))
+                .limit(limit);
+        List<DBObject> changedEntries = mongoTemplate.find(query, DBObject.class, mongoTemplate.getCollectionName(TrustEntry.class));
+        List<TrustEntry> entries = new ArrayList<>(changedEntries.size());
+        Position position = after;
+        for (DBObject changedEntry : changedEntries) {
+            entries.add(mongoTemplate.getConverter().read(TrustEntry.class, changedEntry));
+            position = new Position(((Number) changedEntry.get(FIELD_CHANGE_SEQUENCE)).longValue());
+        }
+        return new Changes(entries, position);
+    }
+
+    /**
+     * Publishes the trust entries changed since the previous sync.
+     *
+     * @return number of the published entries
+     */
+    @Scheduled(fixedDelayString = "${trust.sync.interval:60000}")
+    public synchronized int sync() {
+        if (!syncEnabled)
+            return 0;
+        int published = 0;
+        Changes changes;
+        do {
+            changes = getChanges(syncPosition, pageSize);
+            if (changes.entries.isEmpty())
+                break;
+            try {
+                amqpTemplate.convertAndSend(syncExchange, syncRoutingKey, amqpMessageCodec.writeTrustEntries(changes.entries));
+            } catch (JsonProcessingException | RuntimeException e) {
+                log.warn("Couldn't publish the trust entries changes, retrying in the next sync: " + e.getMessage());
+                break;
+            }
+            published += changes.entries.size();
+            syncPosition = changes.position;
+            mongoTemplate.upsert(new Query(Criteria.where(FIELD_ID).is(SYNC_POSITION_ID)),
+                    Update.update(FIELD_VALUE, syncPosition.sequence),
+                    STATE_COLLECTION);
+        } while (changes.entries.size() == pageSize);
+        if (published > 0)
+            log.debug("Published " + published + " changed trust entries");
+        return published;
+    }
+
+    /**
+     * Position in the feed: the sequence number of a change
+     */
+    public static class Position {
+        /**
+         * position before the first change
+         */
+        public static final Position START = new Position(0);
+
+        private final long sequence;
+
+        public Position(long sequence) {
+            this.sequence = sequence;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    /**
+     * Page of the feed: the changed entries and the position the next page starts after
+     */
+    public static class Changes {
+        private final List<TrustEntry> entries;
+        private final Position position;
+
+        public Changes(List<TrustEntry> entries, Position position) {
+            this.entries = entries;
+            this.position = position;
+        }
+
+        public List<TrustEntry> getEntries() {
+            return entries;
+        }
+
+        public Position getPosition() {
+            return position;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.bartering.repositories.TrustRepository;
+import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory table of the platforms' reputation scores, backed by the {@link TrustRepository}.
+ * Warmed up at startup, updated with every trust entry snapshot and on every save/delete of a {@link TrustEntry},
+ * so that bartering decisions are gated by the trust threshold without querying the repository.
+ */
+@Profile("platform")
+@Component
+public class TrustScoreTable extends AbstractMongoEventListener<TrustEntry> {
+
+    private static Log log = LogFactory.getLog(TrustScoreTable.class);
+
+    private final TrustRepository trustRepository;
+    private final double threshold;
+    private final ConcurrentMap<String, Double> platformReputations = new ConcurrentHashMap<>();
+    // reputation entry id -> platform id, so that deleted entries are resolved to their platforms
+    private final ConcurrentMap<String, String> reputationEntries = new ConcurrentHashMap<>();
+
+    @Autowired
+    public TrustScoreTable(TrustRepository trustRepository,
+                           @Value("${trust.entity.threshold:0}") double threshold) {
+        this.trustRepository = trustRepository;
+        this.threshold = threshold;
+    }
+
+    @PostConstruct
+    public void warmUp() {
+        // rebuilt aside, so that the platforms are never missing from the table in the meantime
+        Map<String, Double> loadedReputations = new HashMap<>();
+        Map<String, String> loadedEntries = new HashMap<>();
+        trustRepository.findAll().forEach(trustEntry -> {
+            update(trustEntry, loadedReputations);
+            register(trustEntry, loadedEntries);
+        });
+        platformReputations.putAll(loadedReputations);
+        platformReputations.keySet().retainAll(loadedReputations.keySet());
+        reputationEntries.putAll(loadedEntries);
+        reputationEntries.keySet().retainAll(loadedEntries.keySet());
+        log.info("Trust score table warmed up with " + platformReputations.size() + " platform reputations");
+    }
+
+    /**
+     * Applies the trust entries already stored in the repository.
+     */
+    public void update(Collection<TrustEntry> trustEntries) {
+        trustEntries.forEach(trustEntry -> update(trustEntry, platformReputations));
+    }
+
+    /**
+     * Registers the id the trust entry got when it was inserted by an upsert, which emits no mapping events.
+     * Entries updated by an upsert keep their already registered ids.
+     */
+    public void registerInserted(TrustEntry trustEntry, Object id) {
+        if (trustEntry.getType() == TrustEntry.Type.PLATFORM_REPUTATION
+                && trustEntry.getPlatformId() != null) {
+            reputationEntries.put(id.toString(), trustEntry.getPlatformId());
+        }
+    }
+
+    /**
+     * @param platformId identifier of the platform
+     * @return reputation of the platform or null if it is unknown
+     */
+    public Double getPlatformReputation(String platformId) {
+        return platformReputations.get(platformId);
+    }
+
+    /**
+     * @param platformId identifier of the platform
+     * @return false if the platform's reputation is below the trust threshold, platforms without reputation are trusted
+     */
+    public boolean isPlatformTrusted(String platformId) {
+        Double reputation = platformReputations.get(platformId);
+        return reputation == null || reputation >= threshold;
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<TrustEntry> event) {
+        update(event.getSource(), platformReputations);
+        register(event.getSource(), reputationEntries);
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<TrustEntry> event) {
+        DBObject query = event.getDBObject();
+        Object id = query == null ? null : query.get("_id");
+        if (id instanceof String || id instanceof ObjectId) {
+            remove(id.toString());
+            return;
+        }
+        // deleted in batches by {_id: {$in: [...]}}
+        if (id instanceof DBObject && ((DBObject) id).get("$in") instanceof Collection) {
+            ((Collection<?>) ((DBObject) id).get("$in")).forEach(deletedId -> remove(String.valueOf(deletedId)));
+            return;
+        }
+        // deleted by an arbitrary query
+        warmUp();
+    }
+
+    private void remove(String entryId) {
+        // ids of all the reputation entries are registered, so other entries are skipped
+        String platformId = reputationEntries.remove(entryId);
+        if (platformId != null) {
+            platformReputations.remove(platformId);
+        }
+    }
+
+    private static void register(TrustEntry trustEntry, Map<String, String> entries) {
+        if (trustEntry.getType() == TrustEntry.Type.PLATFORM_REPUTATION
+                && trustEntry.getPlatformId() != null
+                && trustEntry.getId() != null) {
+            entries.put(trustEntry.getId(), trustEntry.getPlatformId());
+        }
+    }
+
+    private static void update(TrustEntry trustEntry, Map<String, Double> reputations) {
+        if (trustEntry.getType() != TrustEntry.Type.PLATFORM_REPUTATION
+                || trustEntry.getPlatformId() == null)
+            return;
+        Double reputation = trustEntry.getValue();
+        if (reputation == null) {
+            reputations.remove(trustEntry.getPlatformId());
+            return;
+        }
+        reputations.put(trustEntry.getPlatformId(), reputation);
+    }
+}
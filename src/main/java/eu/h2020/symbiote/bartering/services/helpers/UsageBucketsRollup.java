@@ -0,0 +1,168 @@
+package eu.h2020.symbiote.bartering.services.helpers;
+
+import com.mongodb.DBObject;
+import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rolls the usage buckets of the registered coupons up into coarser ones, so that the usage history of a coupon
+ * doesn't grow with every minute it is used in. Buckets older than the hourly threshold are merged into hourly buckets
+ * and the ones older than the daily threshold into daily buckets. A rolled up bucket keeps the key of its first minute,
+ * so the usages are counted the same way, only with the coarser precision.
+ * Old buckets are never incremented again, so they are merged by atomic updates guarded by their values only.
+ * The times the buckets were rolled up before are persisted, so that a restart doesn't scan the whole registry again.
+ * <p>
+ * As the usages are counted by the start of their bucket (see {@link AccountingCoupon#countUsages}), the usage
+ * of a rolled up period is exact only for the periods aligned to its hours/days.
+ */
+@Profile("core")
+@Component
+public class UsageBucketsRollup {
+
+    private static Log log = LogFactory.getLog(UsageBucketsRollup.class);
+    private static final long HOUR = 3600000;
+    private static final long DAY = 24 * HOUR;
+    private static final String STATE_COLLECTION = "usageBucketsRollup";
+    private static final String STATE_ID = "rolledUpBefore";
+    private static final String FIELD_HOURLY_ROLLED_UP_BEFORE = "hourly";
+    private static final String FIELD_DAILY_ROLLED_UP_BEFORE = "daily";
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+    private final long hourlyAfter;
+    private final long dailyAfter;
+    private final int batchSize;
+    // buckets older than these were already rolled up by the previous run
+    private long hourlyRolledUpBefore = 0;
+    private long dailyRolledUpBefore = 0;
+
+    @Autowired
+    public UsageBucketsRollup(MongoTemplate mongoTemplate,
+                              @Value("${btm.core.usageBuckets.rollup.enabled:true}") boolean enabled,
+                              @Value("${btm.core.usageBuckets.rollup.hourlyAfter:86400000}") long hourlyAfter,
+                              @Value("${btm.core.usageBuckets.rollup.dailyAfter:2592000000}") long dailyAfter,
+                              @Value("${btm.core.usageBuckets.rollup.batchSize:1000}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+        this.hourlyAfter = hourlyAfter;
+        this.dailyAfter = dailyAfter;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Loads the times the buckets were rolled up before by the previous runs.
+     */
+    @PostConstruct
+    public synchronized void loadState() {
+        DBObject state = mongoTemplate.findById(STATE_ID, DBObject.class, STATE_COLLECTION);
+        if (state == null)
+            return;
+        hourlyRolledUpBefore = ((Number) state.get(FIELD_HOURLY_ROLLED_UP_BEFORE)).longValue();
+        dailyRolledUpBefore = ((Number) state.get(FIELD_DAILY_ROLLED_UP_BEFORE)).longValue();
+    }
+
+    /**
+     * Periodically rolls up the usage buckets which got older than the thresholds since the previous run.
+     */
+    @Scheduled(fixedDelayString = "${btm.core.usageBuckets.rollup.interval:3600000}")
+    public void rollupInBackground() {
+        if (!enabled)
+            return;
+        long startTime = System.currentTimeMillis();
+        int rolledUp = rollup(startTime);
+        if (rolledUp > 0)
+            log.info("Usage buckets of " + rolledUp + " coupons rolled up in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * @param timestamp the thresholds are counted from
+     * @return number of the coupons whose usage buckets were rolled up
+     */
+    public synchronized int rollup(long timestamp) {
+        int rolledUp = rollup(timestamp - hourlyAfter, HOUR, hourlyRolledUpBefore);
+        hourlyRolledUpBefore = timestamp - hourlyAfter;
+        rolledUp += rollup(timestamp - dailyAfter, DAY, dailyRolledUpBefore);
+        dailyRolledUpBefore = timestamp - dailyAfter;
+        mongoTemplate.upsert(new Query(Criteria.where(AccountingCoupon.FIELD_ID).is(STATE_ID)),
+                new Update().set(FIELD_HOURLY_ROLLED_UP_BEFORE, hourlyRolledUpBefore)
+                        .set(FIELD_DAILY_ROLLED_UP_BEFORE, dailyRolledUpBefore),
+                STATE_COLLECTION);
+        return rolledUp;
+    }
+
+    private int rollup(long cutoff, long granularity, long rolledUpBefore) {
+        // only the coupons consumed since the previous run got buckets which were not rolled up yet
+        Query query = new Query(Criteria.where(AccountingCoupon.FIELD_LAST_CONSUMPTION_TIMESTAMP).gte(rolledUpBefore)
+                .and(AccountingCoupon.FIELD_FIRST_USE_TIMESTAMP).gt(0L).lt(cutoff));
+        query.fields().include(AccountingCoupon.FIELD_USAGE_BUCKETS);
+        int rolledUp = 0;
+        BulkOperations bulkOperations = null;
+        int batched = 0;
+        try (CloseableIterator<DBObject> coupons = mongoTemplate.stream(query, DBObject.class,
+                mongoTemplate.getCollectionName(AccountingCoupon.class))) {
+            while (coupons.hasNext()) {
+                DBObject coupon = coupons.next();
+                Criteria guard = Criteria.where(AccountingCoupon.FIELD_ID).is(coupon.get(AccountingCoupon.FIELD_ID));
+                Update update = new Update();
+                if (!rollup((DBObject) coupon.get(AccountingCoupon.FIELD_USAGE_BUCKETS), cutoff, granularity, guard, update))
+                    continue;
+                if (bulkOperations == null) {
+                    bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, AccountingCoupon.class);
+                }
+                bulkOperations.updateOne(new Query(guard), update);
+                if (++batched == batchSize) {
+                    bulkOperations.execute();
+                    rolledUp += batched;
+                    bulkOperations = null;
+                    batched = 0;
+                }
+            }
+        }
+        if (bulkOperations != null) {
+            bulkOperations.execute();
+            rolledUp += batched;
+        }
+        return rolledUp;
+    }
+
+    /**
+     * Fills the update merging the buckets started before the cutoff into the buckets of the given granularity.
+     *
+     * @return false if there is nothing to be merged
+     */
+    private static boolean rollup(DBObject usageBuckets, long cutoff, long granularity, Criteria guard, Update update) {
+        if (usageBuckets == null)
+            return false;
+        Map<String, Long> rolledUpBuckets = new HashMap<>();
+        for (String bucket : usageBuckets.keySet()) {
+            long bucketStart = Long.parseLong(bucket) * AccountingCoupon.USAGE_BUCKET_DURATION;
+            String rolledUpBucket = AccountingCoupon.getUsageBucket(bucketStart - bucketStart % granularity);
+            if (bucketStart >= cutoff || rolledUpBucket.equals(bucket))
+                continue;
+            Object usages = usageBuckets.get(bucket);
+            // not merged by a concurrent rollup in the meantime
+            guard.and(AccountingCoupon.FIELD_USAGE_BUCKETS + "." + bucket).is(usages);
+            update.unset(AccountingCoupon.FIELD_USAGE_BUCKETS + "." + bucket);
+            rolledUpBuckets.merge(rolledUpBucket, ((Number) usages).longValue(), Long::sum);
+        }
+        rolledUpBuckets.forEach((rolledUpBucket, usages) ->
+                update.inc(AccountingCoupon.FIELD_USAGE_BUCKETS + "." + rolledUpBucket, usages));
+        return !rolledUpBuckets.isEmpty();
+    }
+}
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import eu.h2020.symbiote.bartering.repositories.CouponsWallet;
 import eu.h2020.symbiote.bartering.repositories.FederationsRepository;
+import eu.h2020.symbiote.bartering.repositories.PooledCouponsRepository;
 import eu.h2020.symbiote.bartering.services.BarteredAccessManagementService;
 import eu.h2020.symbiote.bartering.services.helpers.CouponIssuer;
 import eu.h2020.symbiote.bartering.utils.DummyCoreAAMAndBTM;
@@ -53,6 +54,8 @@ public abstract class AbstractBTMTestSuite {
     @Autowired
     protected FederationsRepository federationsRepository;
     @Autowired
+    protected PooledCouponsRepository pooledCouponsRepository;
+    @Autowired
     protected CouponIssuer couponIssuer;
     @Autowired
     protected DummyCoreAAMAndBTM dummyCoreAAMAndBTM;
@@ -116,6 +119,7 @@ public abstract class AbstractBTMTestSuite {
         // cleanup db
         couponsWallet.deleteAll();
         federationsRepository.deleteAll();
+        pooledCouponsRepository.deleteAll();
     }
 
     @Bean
@@ -0,0 +1,117 @@
+package eu.h2020.symbiote.bartering.benchmark;
+
+import eu.h2020.symbiote.bartering.listeners.amqp.RabbitHelper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleRabbitListenerEndpoint;
+import org.springframework.amqp.support.converter.SimpleMessageConverter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the message throughput of the listener containers built by {@link RabbitHelper}
+ * against their concurrency, prefetch and txSize settings. Requires a running Rabbit broker
+ * (rabbit.host, rabbit.username, rabbit.password system properties, local guest broker by default),
+ * so it is excluded from the regular tests and run by the listenerBenchmark task.
+ * Each message simulates a listener blocked on a remote call for {@link #PROCESSING_TIME} ms.
+ */
+public class ListenerThroughputBenchmark {
+
+    private static Log log = LogFactory.getLog(ListenerThroughputBenchmark.class);
+
+    private static final int MESSAGES = 2000;
+    private static final long PROCESSING_TIME = 2;
+    /**
+     * concurrency, maxConcurrency, prefetch, txSize
+     */
+    private static final int[][] SETTINGS = {
+            {1, 1, 1, 1},
+            {1, 1, 50, 1},
+            {1, 1, 50, 10},
+            {4, 4, 1, 1},
+            {4, 16, 1, 1},
+            {16, 16, 10, 1},
+            {16, 16, 50, 10},
+    };
+
+    private CachingConnectionFactory connectionFactory;
+    private RabbitAdmin rabbitAdmin;
+    private RabbitTemplate rabbitTemplate;
+
+    @Before
+    public void setUp() {
+        connectionFactory = new CachingConnectionFactory(System.getProperty("rabbit.host", "localhost"));
+        connectionFactory.setUsername(System.getProperty("rabbit.username", "guest"));
+        connectionFactory.setPassword(System.getProperty("rabbit.password", "guest"));
+        connectionFactory.setChannelCacheSize(Integer.getInteger("rabbit.connection.channelCacheSize", 25));
+        rabbitAdmin = new RabbitAdmin(connectionFactory);
+        rabbitTemplate = new RabbitTemplate(connectionFactory);
+    }
+
+    @After
+    public void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void listenerThroughputAgainstSettings() throws
+            InterruptedException {
+        log.info("concurrency | maxConcurrency | prefetch | txSize | messages/s");
+        for (int[] settings : SETTINGS) {
+            double throughput = measure(settings[0], settings[1], settings[2], settings[3]);
+            log.info(String.format("%11d | %14d | %8d | %6d | %10.0f", settings[0], settings[1], settings[2], settings[3], throughput));
+            assertTrue(throughput > 0);
+        }
+    }
+
+    private double measure(int concurrency, int maxConcurrency, int prefetch, int txSize) throws
+            InterruptedException {
+        Queue queue = new AnonymousQueue();
+        rabbitAdmin.declareQueue(queue);
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < MESSAGES; i++) {
+            rabbitTemplate.send("", queue.getName(), new Message(body, new MessageProperties()));
+        }
+        CountDownLatch consumed = new CountDownLatch(MESSAGES);
+        SimpleRabbitListenerContainerFactory factory = RabbitHelper.createListenerContainerFactory(connectionFactory,
+                new SimpleMessageConverter(), concurrency, maxConcurrency, prefetch, txSize);
+        SimpleRabbitListenerEndpoint endpoint = new SimpleRabbitListenerEndpoint();
+        endpoint.setId("benchmark-" + queue.getName());
+        endpoint.setQueueNames(queue.getName());
+        endpoint.setMessageListener(message -> {
+            try {
+                Thread.sleep(PROCESSING_TIME);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            consumed.countDown();
+        });
+        SimpleMessageListenerContainer container = factory.createListenerContainer(endpoint);
+        container.afterPropertiesSet();
+        long startTime = System.nanoTime();
+        container.start();
+        try {
+            assertTrue(consumed.await(5, TimeUnit.MINUTES));
+            return MESSAGES / ((System.nanoTime() - startTime) / 1e9);
+        } finally {
+            container.stop();
+            rabbitAdmin.deleteQueue(queue.getName());
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package eu.h2020.symbiote.bartering.functional;
 
 import eu.h2020.symbiote.bartering.AbstractBTMTestSuite;
+import eu.h2020.symbiote.bartering.services.helpers.FederationMembershipIndex;
 import eu.h2020.symbiote.model.mim.Federation;
 import eu.h2020.symbiote.model.mim.FederationMember;
 import eu.h2020.symbiote.model.mim.InformationModel;
@@ -39,6 +40,8 @@ public class FederationsManagementFunctionalTests extends
     protected String federationManagementDeleteRoutingKey;
     @Autowired
     RabbitTemplate rabbitTemplate;
+    @Autowired
+    FederationMembershipIndex federationMembershipIndex;
     private Federation federation;
 
     @Before
@@ -70,6 +73,8 @@ public class FederationsManagementFunctionalTests extends
         assertTrue(federationsRepository.exists(federationId));
         assertEquals(1, federationsRepository.findOne(federationId).getMembers().size());
         assertTrue(federationsRepository.findOne(federationId).getMembers().get(0).getPlatformId().equals(dummyPlatformId));
+        //membership index updated
+        assertTrue(federationMembershipIndex.getMembers(federationId).contains(dummyPlatformId));
     }
 
     @Test
@@ -96,6 +101,9 @@ public class FederationsManagementFunctionalTests extends
         List<String> federationMembersIds = new ArrayList<>();
         federationsRepository.findOne(federationId).getMembers().forEach(x -> federationMembersIds.add(x.getPlatformId()));
         assertTrue(federationMembersIds.contains(newFederationMemberId));
+        //membership index updated
+        assertTrue(federationMembershipIndex.getMembers(federationId).contains(newFederationMemberId));
+        assertFalse(federationMembershipIndex.getMembers(federationId).contains(dummyPlatformId));
     }
 
     @Test
@@ -110,5 +118,6 @@ public class FederationsManagementFunctionalTests extends
         //wait until rabbit listener remove federation
         Thread.sleep(1000);
         assertFalse(federationsRepository.exists(federationId));
+        assertNull(federationMembershipIndex.getMembers(federationId));
     }
 }
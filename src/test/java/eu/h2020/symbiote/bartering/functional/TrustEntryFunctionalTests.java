@@ -5,7 +5,10 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import eu.h2020.symbiote.bartering.AbstractBTMTestSuite;
+import eu.h2020.symbiote.bartering.listeners.amqp.AmqpMessageCodec;
+import eu.h2020.symbiote.bartering.listeners.amqp.UpdateTrustEntryConsumer;
 import eu.h2020.symbiote.bartering.repositories.TrustRepository;
+import eu.h2020.symbiote.bartering.services.helpers.TrustEntriesChangeFeed;
 import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
 import org.junit.Before;
 import org.junit.Test;
@@ -13,7 +16,9 @@ import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.test.context.TestPropertySource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import static junit.framework.TestCase.assertEquals;
@@ -33,6 +38,15 @@ public class TrustEntryFunctionalTests extends AbstractBTMTestSuite {
     @Autowired
     private TrustRepository trustRepository;
 
+    @Autowired
+    private TrustEntriesChangeFeed trustEntriesChangeFeed;
+
+    @Autowired
+    private UpdateTrustEntryConsumer updateTrustEntryConsumer;
+
+    @Autowired
+    private AmqpMessageCodec amqpMessageCodec;
+
     private TrustEntry trustEntry;
     private List<TrustEntry> list;
 
@@ -71,6 +85,48 @@ public class TrustEntryFunctionalTests extends AbstractBTMTestSuite {
 
     }
 
+    @Test
+    public void resourceTrustEntryDoesNotOverwritePlatformReputation()
+            throws JsonProcessingException {
+        TrustEntry resourceTrustEntry = new TrustEntry(TrustEntry.Type.RESOURCE_TRUST, trustEntry.getPlatformId(), "resource@1");
+        resourceTrustEntry.setValue(30.0);
+        list.add(resourceTrustEntry);
+        // the whole batch applied by the consumer
+        updateTrustEntryConsumer.updateTrustEntry(convertObjectToJson(list).getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(trustRepository.getPREntryByPlatformId(trustEntry.getPlatformId()).getValue(), 10.0);
+        assertEquals(trustRepository.getRTEntryByResourceId(resourceTrustEntry.getResourceId()).getValue(), 30.0);
+    }
+
+    @Test
+    public void changedTrustEntriesReadInPages() throws
+            JsonProcessingException {
+        // after the entries changed by the other tests
+        TrustEntriesChangeFeed.Position since = trustEntriesChangeFeed.getChanges(TrustEntriesChangeFeed.Position.START, Integer.MAX_VALUE).getPosition();
+        Date lastUpdate = new Date(System.currentTimeMillis() + 3600000);
+        List<TrustEntry> changedEntries = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            TrustEntry changedEntry = new TrustEntry(TrustEntry.Type.PLATFORM_REPUTATION, "changed@" + i, "air quality");
+            // the change times set by the Trust Manager don't order the feed
+            changedEntry.setLastUpdate(new Date(lastUpdate.getTime() - i));
+            changedEntries.add(changedEntry);
+        }
+        updateTrustEntryConsumer.updateTrustEntry(amqpMessageCodec.writeTrustEntries(changedEntries).getBytes(StandardCharsets.UTF_8));
+        try {
+            TrustEntriesChangeFeed.Changes firstPage = trustEntriesChangeFeed.getChanges(since, 2);
+            assertEquals(2, firstPage.getEntries().size());
+            assertEquals("changed@1", firstPage.getEntries().get(0).getPlatformId());
+            TrustEntriesChangeFeed.Changes secondPage = trustEntriesChangeFeed.getChanges(firstPage.getPosition(), 2);
+            assertEquals(1, secondPage.getEntries().size());
+            assertEquals("changed@3", secondPage.getEntries().get(0).getPlatformId());
+            assertTrue(trustEntriesChangeFeed.getChanges(secondPage.getPosition(), 2).getEntries().isEmpty());
+            // entries updated after the given time
+            assertEquals(2, trustRepository.findEntriesUpdatedAfter(new Date(lastUpdate.getTime() - 3), TrustEntry.Type.PLATFORM_REPUTATION).size());
+        } finally {
+            changedEntries.forEach(changedEntry -> trustRepository.delete(trustRepository.getPREntryByPlatformId(changedEntry.getPlatformId())));
+        }
+    }
+
     public String convertObjectToJson(Object obj) throws
             JsonProcessingException {
         ObjectMapper mapper = new ObjectMapper();
@@ -2,9 +2,17 @@ package eu.h2020.symbiote.bartering.unit;
 
 import eu.h2020.symbiote.bartering.AbstractBTMTestSuite;
 import eu.h2020.symbiote.bartering.communication.BTMClient;
+import eu.h2020.symbiote.bartering.communication.CoreBTMClient;
 import eu.h2020.symbiote.bartering.config.AppConfig;
 import eu.h2020.symbiote.bartering.config.ComponentSecurityHandlerProvider;
+import eu.h2020.symbiote.bartering.repositories.TrustRepository;
 import eu.h2020.symbiote.bartering.repositories.entities.CouponEntity;
+import eu.h2020.symbiote.bartering.services.helpers.BTMAddressDirectory;
+import eu.h2020.symbiote.bartering.services.helpers.BTMClientsCache;
+import eu.h2020.symbiote.bartering.services.helpers.BarteredAccessDecisionCache;
+import eu.h2020.symbiote.bartering.services.helpers.CouponPool;
+import eu.h2020.symbiote.bartering.services.helpers.TrustScoreTable;
+import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
 import eu.h2020.symbiote.model.mim.Federation;
 import eu.h2020.symbiote.model.mim.FederationMember;
 import eu.h2020.symbiote.security.commons.Coupon;
@@ -13,6 +21,7 @@ import eu.h2020.symbiote.security.commons.exceptions.custom.*;
 import eu.h2020.symbiote.security.communication.AAMClient;
 import eu.h2020.symbiote.security.communication.payloads.BarteredAccessRequest;
 import eu.h2020.symbiote.security.communication.payloads.CouponRequest;
+import eu.h2020.symbiote.security.communication.payloads.CouponValidity;
 import eu.h2020.symbiote.security.communication.payloads.SecurityRequest;
 import eu.h2020.symbiote.security.handler.IComponentSecurityHandler;
 import eu.h2020.symbiote.security.handler.ISecurityHandler;
@@ -49,6 +58,18 @@ public class BarteredAccessUnitTests extends AbstractBTMTestSuite {
     @Autowired
     private AppConfig appConfig;
 
+    @Autowired
+    private BTMClientsCache btmClientsCache;
+
+    @Autowired
+    private BTMAddressDirectory btmAddressDirectory;
+
+    @Autowired
+    private TrustRepository trustRepository;
+
+    @Autowired
+    private TrustScoreTable trustScoreTable;
+
 
     @Override
     @Before
@@ -69,6 +90,7 @@ public class BarteredAccessUnitTests extends AbstractBTMTestSuite {
 
         doReturn(new AAMClient(serverAddress + "/test/caam").getAvailableAAMs().getAvailableAAMs())
                 .when(mockedSecurityHandler).getAvailableAAMs();
+        btmAddressDirectory.invalidate();
 
         // federation adding
         federation = new Federation();
@@ -114,6 +136,31 @@ public class BarteredAccessUnitTests extends AbstractBTMTestSuite {
         assertEquals(1, couponsWallet.count());
     }
 
+    @Test
+    public void authorizeBarteredAccessFailClientsPlatformNotTrusted() throws
+            SecurityHandlerException,
+            BTMException,
+            InvalidArgumentsException,
+            WrongCredentialsException {
+        federationsRepository.save(federation);
+        TrustEntry reputation = new TrustEntry();
+        reputation.setType(TrustEntry.Type.PLATFORM_REPUTATION);
+        reputation.setPlatformId(dummyPlatformId);
+        reputation.setValue(10.0);
+        trustRepository.save(reputation);
+        BarteredAccessRequest barteredAccessRequest = new BarteredAccessRequest(dummyPlatformId, federationId, "resourceId", Type.DISCRETE);
+        try {
+            barteredAccessManagementService.authorizeBarteredAccess(barteredAccessRequest);
+            fail("Access granted to the platform with reputation below the threshold");
+        } catch (ValidationException e) {
+            // rejected using the trust score table, before any remote call
+            assertTrue(couponsWallet.findAll().isEmpty());
+        } finally {
+            trustRepository.delete(reputation);
+        }
+        assertTrue(trustScoreTable.isPlatformTrusted(dummyPlatformId));
+    }
+
     @Test(expected = InvalidArgumentsException.class)
     public void authorizeBarteredAccessFailNoFederation() throws
             SecurityHandlerException,
@@ -349,6 +396,79 @@ public class BarteredAccessUnitTests extends AbstractBTMTestSuite {
         assertEquals(Type.DISCRETE, coupon.getType());
     }
 
+    @Test
+    public void btmClientsCacheReusesClientsOfTheSameAddress() throws
+            SecurityHandlerException {
+        assertSame(btmClientsCache.getBTMClient(serverAddress), btmClientsCache.getBTMClient(serverAddress));
+        assertNotSame(btmClientsCache.getBTMClient(serverAddress), btmClientsCache.getBTMClient(serverAddress + "/other"));
+        assertSame(btmClientsCache.getCoreBTMClient(serverAddress + "/test/btm"),
+                btmClientsCache.getCoreBTMClient(serverAddress + "/test/btm"));
+    }
 
+    @Test
+    public void couponPoolHandsOutPreRegisteredCoupons() throws
+            SecurityHandlerException {
+        CouponPool couponPool = new CouponPool(couponIssuer, pooledCouponsRepository, true, 1, 3);
+        CoreBTMClient coreBTMClient = btmClientsCache.getCoreBTMClient(serverAddress + "/test/btm");
+        //pool replenished up to the high watermark
+        assertEquals(3, couponPool.refill(Type.DISCRETE, federationId, coreBTMClient));
+        assertEquals(3, couponPool.size(Type.DISCRETE, federationId));
+        assertEquals(0, couponPool.size(Type.PERIODIC, federationId));
+        //pooled coupons are not stored in the wallet until handed out, but persisted in the pool
+        assertEquals(0, couponsWallet.count());
+        assertEquals(3, pooledCouponsRepository.count());
+        Coupon coupon = couponPool.poll(Type.DISCRETE, federationId, coreBTMClient);
+        assertNotNull(coupon);
+        assertEquals(Type.DISCRETE, coupon.getType());
+        assertFalse(pooledCouponsRepository.exists(coupon.getId()));
+        couponPool.shutdown();
+        //the rest of the pool is reloaded after a restart
+        CouponPool restartedCouponPool = new CouponPool(couponIssuer, pooledCouponsRepository, true, 1, 3);
+        restartedCouponPool.reload();
+        assertEquals(2, restartedCouponPool.size(Type.DISCRETE, federationId));
+        restartedCouponPool.shutdown();
+        //registration failure stops the replenishment
+        dummyCoreAAMAndBTM.registrationStatus = HttpStatus.BAD_REQUEST;
+        assertEquals(0, couponPool.refill(Type.PERIODIC, federationId, coreBTMClient));
+    }
+
+    @Test
+    public void barteredAccessDecisionCacheReusesForeignCouponWithinItsValidity() {
+        BarteredAccessDecisionCache decisionCache = new BarteredAccessDecisionCache(10, 60000);
+        //foreign coupon with 3 usages left, one used by the current request
+        decisionCache.putForeignCoupon(dummyPlatformId, federationId, Type.DISCRETE, "couponString",
+                new CouponValidity(CouponValidationStatus.VALID, Type.DISCRETE, 3, 0));
+        BarteredAccessDecisionCache.Decision decision = decisionCache.get(dummyPlatformId, federationId, Type.DISCRETE);
+        assertNotNull(decision);
+        assertFalse(decision.isLocalCoupon());
+        assertTrue(decision.use());
+        assertTrue(decision.use());
+        assertFalse(decision.use());
+        //other coupon type is not cached
+        assertNull(decisionCache.get(dummyPlatformId, federationId, Type.PERIODIC));
+        //coupon with the last usage taken by the current request is not cached
+        decisionCache.putForeignCoupon(dummyPlatformId, federationId, Type.PERIODIC, "couponString",
+                new CouponValidity(CouponValidationStatus.VALID, Type.DISCRETE, 1, 0));
+        assertNull(decisionCache.get(dummyPlatformId, federationId, Type.PERIODIC));
+        //local coupon has to be consumed on every reuse
+        decisionCache.putLocalCoupon(dummyPlatformId, federationId, Type.PERIODIC, "localCouponString");
+        assertTrue(decisionCache.get(dummyPlatformId, federationId, Type.PERIODIC).isLocalCoupon());
+        //federation change invalidates all decisions
+        decisionCache.invalidateAll();
+        assertNull(decisionCache.get(dummyPlatformId, federationId, Type.DISCRETE));
+        assertNull(decisionCache.get(dummyPlatformId, federationId, Type.PERIODIC));
+    }
+
+    @Test
+    public void btmAddressDirectoryResolvesPlatformBTMAddresses() throws
+            SecurityHandlerException {
+        assertEquals(serverAddress + "/test/platform/btm", btmAddressDirectory.getBTMAddress(dummyPlatformId));
+        assertNull(btmAddressDirectory.getBTMAddress("notRegisteredPlatformId"));
+        //directory is served from memory until invalidated
+        doThrow(new SecurityHandlerException("")).when(mockedSecurityHandler).getAvailableAAMs();
+        assertEquals(serverAddress + "/test/platform/btm", btmAddressDirectory.getBTMAddress(dummyPlatformId));
+        assertEquals("https://core/btm", BTMAddressDirectory.toBTMAddress("https://core/aam"));
+        assertEquals("https://core/btm", BTMAddressDirectory.toBTMAddress("https://core"));
+    }
 
 }
@@ -1,12 +1,22 @@
 package eu.h2020.symbiote.bartering.unit;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 import eu.h2020.symbiote.bartering.AbstractCoreBTMTestSuite;
 import eu.h2020.symbiote.bartering.TestConfig;
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
+import eu.h2020.symbiote.bartering.commons.ParsedCoupon;
 import eu.h2020.symbiote.bartering.communication.CoreBTMClient;
 import eu.h2020.symbiote.bartering.config.ComponentSecurityHandlerProvider;
+import eu.h2020.symbiote.bartering.config.CoreRegistryIndexes;
+import eu.h2020.symbiote.bartering.config.ServiceResponseProvider;
 import eu.h2020.symbiote.bartering.repositories.TrustRepository;
 import eu.h2020.symbiote.bartering.repositories.entities.AccountingCoupon;
+import eu.h2020.symbiote.bartering.services.helpers.BtmCertificatesCache;
 import eu.h2020.symbiote.bartering.services.helpers.CouponIssuer;
+import eu.h2020.symbiote.bartering.services.helpers.CouponValidityCache;
+import eu.h2020.symbiote.bartering.services.helpers.PeriodicCouponsExpiryScheduler;
+import eu.h2020.symbiote.bartering.services.helpers.UsageBucketsRollup;
 import eu.h2020.symbiote.barteringAndTrading.FilterRequest;
 import eu.h2020.symbiote.cloud.trust.model.TrustEntry;
 import eu.h2020.symbiote.security.commons.Coupon;
@@ -25,15 +35,16 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.test.context.TestPropertySource;
 
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static eu.h2020.symbiote.bartering.TestConfig.NO_CONNECTION_ISSUER_NAME;
 import static eu.h2020.symbiote.bartering.TestConfig.SERVICE_ISSUER_NAME;
@@ -59,6 +70,27 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
     @Autowired
     private TrustRepository trustRepository;
 
+    @Autowired
+    private CouponValidityCache couponValidityCache;
+
+    @Autowired
+    private CoreRegistryIndexes coreRegistryIndexes;
+
+    @Autowired
+    private PeriodicCouponsExpiryScheduler periodicCouponsExpiryScheduler;
+
+    @Autowired
+    private BtmCertificatesCache btmCertificatesCache;
+
+    @Autowired
+    private ServiceResponseProvider serviceResponseProvider;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UsageBucketsRollup usageBucketsRollup;
+
     private TrustEntry te;
 
     private KeyPair serviceBtmKeyPair;
@@ -127,6 +159,68 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         assertEquals(CouponValidationStatus.VALID, accountingCoupon.getStatus());
     }
 
+    @Test
+    public void storeMissingFederationIdsOfRegisteredCoupons() throws
+            MalformedJWTException,
+            ValidationException,
+            CertificateException,
+            BTMException,
+            SecurityHandlerException {
+        List<String> registeredCouponIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String couponString = CouponIssuer.buildCouponJWS(
+                    Coupon.Type.DISCRETE,
+                    2,
+                    SERVICE_ISSUER_NAME,
+                    FEDERATION_ID,
+                    serviceBtmKeyPair.getPublic(),
+                    serviceBtmKeyPair.getPrivate());
+            assertTrue(issuedCouponsRegistryManagementService.registerCoupon(new Coupon(couponString)));
+            JWTClaims claims = JWTEngine.getClaimsFromToken(couponString);
+            registeredCouponIds.add(AccountingCoupon.createIdFromNotification(claims.getJti(), claims.getIss()));
+        }
+        // coupons registered before the federation id was stored next to them
+        mongoTemplate.updateMulti(new Query(),
+                new Update().unset(AccountingCoupon.FIELD_FEDERATION_ID),
+                AccountingCoupon.class);
+        assertNull(globalCouponsRegistry.findOne(registeredCouponIds.get(0)).getFederationId());
+        // a malformed coupon doesn't stop the others from being updated
+        String collectionName = mongoTemplate.getCollectionName(AccountingCoupon.class);
+        mongoTemplate.insert(new BasicDBObject(AccountingCoupon.FIELD_ID, "malformed")
+                .append(AccountingCoupon.FIELD_COUPON_STRING, "malformed"), collectionName);
+
+        issuedCouponsRegistryManagementService.storeMissingFederationIds();
+
+        for (String registeredCouponId : registeredCouponIds) {
+            assertEquals(FEDERATION_ID, globalCouponsRegistry.findOne(registeredCouponId).getFederationId());
+        }
+        assertNull(mongoTemplate.findById("malformed", DBObject.class, collectionName).get(AccountingCoupon.FIELD_FEDERATION_ID));
+    }
+
+    @Test
+    public void registerCouponsOfSamePlatformUsingCachedCertificate() throws
+            MalformedJWTException,
+            ValidationException,
+            CertificateException,
+            BTMException,
+            SecurityHandlerException {
+        btmCertificatesCache.invalidateAll();
+        long hits = btmCertificatesCache.getStatistics().get("btmCertificatesCache.hits");
+        for (int i = 0; i < 3; i++) {
+            String couponString = CouponIssuer.buildCouponJWS(
+                    Coupon.Type.DISCRETE,
+                    2,
+                    SERVICE_ISSUER_NAME,
+                    FEDERATION_ID,
+                    serviceBtmKeyPair.getPublic(),
+                    serviceBtmKeyPair.getPrivate());
+            assertTrue(issuedCouponsRegistryManagementService.registerCoupon(new Coupon(couponString)));
+        }
+        // certificate fetched for the first coupon only
+        assertEquals(hits + 2, (long) btmCertificatesCache.getStatistics().get("btmCertificatesCache.hits"));
+        assertEquals(1, (long) btmCertificatesCache.getStatistics().get("btmCertificatesCache.size"));
+    }
+
     @Test(expected = SecurityHandlerException.class)
     public void registerCouponFailCoreAAMNotAvailable() throws
             MalformedJWTException,
@@ -189,6 +283,38 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         issuedCouponsRegistryManagementService.registerCoupon(new Coupon(couponString));
     }
 
+    @Test
+    public void registerCouponsWithMismatchingKeysFetchCertificateOnce() throws
+            CertificateException,
+            BTMException,
+            MalformedJWTException,
+            InvalidAlgorithmParameterException,
+            NoSuchAlgorithmException,
+            NoSuchProviderException,
+            SecurityHandlerException {
+        btmCertificatesCache.invalidateAll();
+        long fetches = btmCertificatesCache.getStatistics().get("btmCertificatesCache.fetches");
+        for (int i = 0; i < 3; i++) {
+            KeyPair keyPair = CryptoHelper.createKeyPair();
+            //generate coupon using random keys
+            String couponString = CouponIssuer.buildCouponJWS(
+                    Coupon.Type.DISCRETE,
+                    2,
+                    SERVICE_ISSUER_NAME,
+                    FEDERATION_ID,
+                    keyPair.getPublic(),
+                    keyPair.getPrivate());
+            try {
+                issuedCouponsRegistryManagementService.registerCoupon(new Coupon(couponString));
+                fail();
+            } catch (ValidationException e) {
+                // mismatch of the keys expected
+            }
+        }
+        // mismatches within the refetch interval answered from the cache
+        assertEquals(fetches + 1, (long) btmCertificatesCache.getStatistics().get("btmCertificatesCache.fetches"));
+    }
+
     @Test(expected = ValidationException.class)
     public void registerCouponFailWrongValValue() throws
             CertificateException,
@@ -243,6 +369,49 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         issuedCouponsRegistryManagementService.registerCoupon(new Coupon(couponString));
     }
 
+    @Test
+    public void registerCouponsInBatchReportsEachCoupon() throws
+            ValidationException,
+            MalformedJWTException,
+            InvalidAlgorithmParameterException,
+            NoSuchAlgorithmException,
+            NoSuchProviderException {
+        String couponString = CouponIssuer.buildCouponJWS(Coupon.Type.DISCRETE,
+                2,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        String registeredCouponString = CouponIssuer.buildCouponJWS(Coupon.Type.PERIODIC,
+                1000,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        globalCouponsRegistry.save(new AccountingCoupon(registeredCouponString));
+        KeyPair keyPair = CryptoHelper.createKeyPair();
+        String wrongKeyCouponString = CouponIssuer.buildCouponJWS(Coupon.Type.DISCRETE,
+                2,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                keyPair.getPublic(),
+                keyPair.getPrivate());
+
+        List<CouponRegistrationResult> results = issuedCouponsRegistryManagementService.registerCoupons(
+                Arrays.asList(couponString, registeredCouponString, "malformed", wrongKeyCouponString, couponString));
+        assertEquals(5, results.size());
+        assertTrue(results.get(0).isRegistered());
+        // already registered
+        assertFalse(results.get(1).isRegistered());
+        assertFalse(results.get(2).isRegistered());
+        assertFalse(results.get(3).isRegistered());
+        // duplicated in the batch
+        assertFalse(results.get(4).isRegistered());
+        assertNotNull(results.get(4).getErrorMessage());
+        assertEquals(couponString, globalCouponsRegistry.findOne(ParsedCoupon.parse(couponString).getRegisteredCouponId()).getCouponString());
+        assertEquals(2, globalCouponsRegistry.count());
+    }
+
     @Test
     public void consumeDiscreteCouponSuccess() throws
             MalformedJWTException,
@@ -276,6 +445,176 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         assertEquals(CouponValidationStatus.CONSUMED_COUPON, accountingCoupon.getStatus());
     }
 
+    @Test
+    public void consumeSingleUsageDiscreteCouponSuccess() throws
+            MalformedJWTException,
+            ValidationException {
+        //generate coupon
+        String couponString = CouponIssuer.buildCouponJWS(Coupon.Type.DISCRETE,
+                1,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        //save coupon in db
+        AccountingCoupon accountingCoupon = new AccountingCoupon(couponString);
+        globalCouponsRegistry.save(accountingCoupon);
+        //consume CouponEntity, activating and exhausting it at once
+        assertEquals(CouponValidationStatus.VALID, issuedCouponsRegistryManagementService.consumeCoupon(new Coupon(couponString)));
+        accountingCoupon = globalCouponsRegistry.findOne(accountingCoupon.getId());
+        assertEquals(1, accountingCoupon.getUsagesCounter());
+        assertEquals(accountingCoupon.getFirstUseTimestamp(), accountingCoupon.getLastConsumptionTimestamp());
+        assertEquals(CouponValidationStatus.CONSUMED_COUPON, accountingCoupon.getStatus());
+        //no usage left
+        assertEquals(CouponValidationStatus.CONSUMED_COUPON, issuedCouponsRegistryManagementService.consumeCoupon(new Coupon(couponString)));
+    }
+
+    @Test
+    public void parsedCouponCarriedThroughRegistrationAndConsumption() throws
+            MalformedJWTException,
+            ValidationException,
+            CertificateException,
+            BTMException,
+            SecurityHandlerException {
+        String couponString = CouponIssuer.buildCouponJWS(Coupon.Type.DISCRETE,
+                2,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        ParsedCoupon parsedCoupon = ParsedCoupon.parse(couponString);
+        JWTClaims claims = JWTEngine.getClaimsFromToken(couponString);
+        assertEquals(AccountingCoupon.createIdFromNotification(claims.getJti(), claims.getIss()), parsedCoupon.getRegisteredCouponId());
+        assertEquals(SERVICE_ISSUER_NAME, parsedCoupon.getIssuer());
+        assertEquals(FEDERATION_ID, parsedCoupon.getFederationId());
+        assertEquals(claims.getIpk(), parsedCoupon.getIssuerPublicKey());
+        assertEquals(Coupon.Type.DISCRETE, parsedCoupon.getType());
+        assertEquals(2, parsedCoupon.getMaximumAllowedUsage());
+        assertTrue(issuedCouponsRegistryManagementService.registerCoupon(parsedCoupon));
+        // read back from the registry using the persisted fields
+        AccountingCoupon accountingCoupon = globalCouponsRegistry.findOne(parsedCoupon.getRegisteredCouponId());
+        assertEquals(couponString, accountingCoupon.getCouponString());
+        assertEquals(FEDERATION_ID, accountingCoupon.getFederationId());
+        assertEquals(2, accountingCoupon.getMaximumAllowedUsage());
+        assertEquals(CouponValidationStatus.VALID, issuedCouponsRegistryManagementService.consumeCoupon(parsedCoupon));
+        CouponValidity couponValidity = issuedCouponsRegistryManagementService.isCouponValid(parsedCoupon);
+        assertEquals(CouponValidationStatus.VALID, couponValidity.getStatus());
+        assertEquals(1, couponValidity.getRemainingUsages());
+    }
+
+    @Test
+    public void consumedCouponUsagesCountedInTimeBuckets() throws
+            MalformedJWTException,
+            ValidationException {
+        //generate coupon
+        String couponString = CouponIssuer.buildCouponJWS(Coupon.Type.PERIODIC,
+                100000,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        //save coupon in db
+        AccountingCoupon accountingCoupon = new AccountingCoupon(couponString);
+        globalCouponsRegistry.save(accountingCoupon);
+        long beginTimestamp = new Date().getTime() - AccountingCoupon.USAGE_BUCKET_DURATION;
+        //consume the coupon few times
+        for (int i = 0; i < 3; i++) {
+            assertEquals(CouponValidationStatus.VALID, issuedCouponsRegistryManagementService.consumeCoupon(new Coupon(couponString)));
+        }
+        long endTimestamp = new Date().getTime() + AccountingCoupon.USAGE_BUCKET_DURATION;
+        //check usages counted in the registered coupon
+        accountingCoupon = globalCouponsRegistry.findOne(accountingCoupon.getId());
+        assertEquals(3, accountingCoupon.getUsagesCounter());
+        assertEquals(3, accountingCoupon.getNumberOfUsedTimeFiltered(beginTimestamp, endTimestamp));
+        assertEquals(0, accountingCoupon.getNumberOfUsedTimeFiltered(endTimestamp, endTimestamp + AccountingCoupon.USAGE_BUCKET_DURATION));
+        //and found by the usage period
+        assertEquals(1, globalCouponsRegistry.findAllByIssuerAndUseTimestampBetween(SERVICE_ISSUER_NAME, beginTimestamp, endTimestamp).size());
+        assertEquals(0, globalCouponsRegistry.findAllByIssuerAndUseTimestampBetween(SERVICE_ISSUER_NAME, endTimestamp, endTimestamp + 1).size());
+    }
+
+    @Test
+    public void oldUsageBucketsRolledUp() throws
+            MalformedJWTException,
+            ValidationException {
+        String couponString = CouponIssuer.buildCouponJWS(Coupon.Type.DISCRETE,
+                100,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        long now = new Date().getTime();
+        long hour = 3600000;
+        long day = 24 * hour;
+        long twoDaysAgoHour = (now - 2 * day) - (now - 2 * day) % hour;
+        long monthsAgoDay = (now - 60 * day) - (now - 60 * day) % day;
+        AccountingCoupon accountingCoupon = new AccountingCoupon(couponString);
+        accountingCoupon.setFirstUseTimestamp(monthsAgoDay + hour);
+        // used in two hours of a day long ago, three minutes of an hour two days ago and just now
+        for (long timestamp : new long[]{monthsAgoDay + hour, monthsAgoDay + 5 * hour,
+                twoDaysAgoHour + 5 * AccountingCoupon.USAGE_BUCKET_DURATION,
+                twoDaysAgoHour + 6 * AccountingCoupon.USAGE_BUCKET_DURATION,
+                twoDaysAgoHour + 7 * AccountingCoupon.USAGE_BUCKET_DURATION,
+                now}) {
+            accountingCoupon.setLastConsumptionTimestamp(timestamp);
+        }
+        globalCouponsRegistry.save(accountingCoupon);
+
+        usageBucketsRollup.rollup(now);
+
+        accountingCoupon = globalCouponsRegistry.findOne(accountingCoupon.getId());
+        // counted in the first minute of the rolled up buckets
+        assertEquals(2, accountingCoupon.getNumberOfUsedTimeFiltered(monthsAgoDay, monthsAgoDay + AccountingCoupon.USAGE_BUCKET_DURATION));
+        assertEquals(3, accountingCoupon.getNumberOfUsedTimeFiltered(twoDaysAgoHour, twoDaysAgoHour + AccountingCoupon.USAGE_BUCKET_DURATION));
+        assertEquals(1, accountingCoupon.getNumberOfUsedTimeFiltered(now - AccountingCoupon.USAGE_BUCKET_DURATION, now + 1));
+        assertEquals(6, accountingCoupon.getNumberOfUsedTimeFiltered(0, now + 1));
+        // already rolled up buckets are left as they are
+        assertEquals(0, usageBucketsRollup.rollup(now));
+        // also after a restart
+        UsageBucketsRollup restartedRollup = new UsageBucketsRollup(mongoTemplate, true, day, 30 * day, 1000);
+        restartedRollup.loadState();
+        assertEquals(0, restartedRollup.rollup(now));
+    }
+
+    @Test
+    public void consumeDiscreteCouponConcurrentlyNeverOverConsumed() throws
+            MalformedJWTException,
+            ValidationException,
+            InterruptedException,
+            ExecutionException {
+        int allowedUsages = 5;
+        int consumers = 20;
+        //generate coupon
+        String couponString = CouponIssuer.buildCouponJWS(Coupon.Type.DISCRETE,
+                allowedUsages,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        //save coupon in db
+        AccountingCoupon accountingCoupon = new AccountingCoupon(couponString);
+        globalCouponsRegistry.save(accountingCoupon);
+        //consume CouponEntity concurrently
+        ExecutorService executorService = Executors.newFixedThreadPool(consumers);
+        List<Future<CouponValidationStatus>> results = new ArrayList<>();
+        for (int i = 0; i < consumers; i++) {
+            results.add(executorService.submit(() -> issuedCouponsRegistryManagementService.consumeCoupon(new Coupon(couponString))));
+        }
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+        int validConsumptions = 0;
+        for (Future<CouponValidationStatus> result : results) {
+            if (result.get().equals(CouponValidationStatus.VALID))
+                validConsumptions++;
+            else
+                assertEquals(CouponValidationStatus.CONSUMED_COUPON, result.get());
+        }
+        assertEquals(allowedUsages, validConsumptions);
+        //check registered coupon in db
+        accountingCoupon = globalCouponsRegistry.findOne(accountingCoupon.getId());
+        assertEquals(allowedUsages, accountingCoupon.getUsagesCounter());
+        assertEquals(CouponValidationStatus.CONSUMED_COUPON, accountingCoupon.getStatus());
+    }
+
     @Test
     public void consumePeriodicCouponSuccess() throws
             MalformedJWTException,
@@ -373,6 +712,51 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         assertEquals(0, couponValidity.getRemainingTime());
     }
 
+    @Test
+    public void serviceResponseReusedWithinWindow() throws
+            SecurityHandlerException {
+        String serviceResponse = serviceResponseProvider.getServiceResponse();
+        long hits = serviceResponseProvider.getStatistics().get("serviceResponse.hits");
+        assertEquals(serviceResponse, serviceResponseProvider.getServiceResponse());
+        assertEquals(hits + 1, (long) serviceResponseProvider.getStatistics().get("serviceResponse.hits"));
+        assertTrue(serviceResponseProvider.getStatistics().get("serviceResponse.hitRate") > 0);
+    }
+
+    @Test
+    public void validateCouponServedFromCacheUntilRegistryWrite() throws
+            MalformedJWTException,
+            ValidationException {
+        //generate coupon
+        String couponString = CouponIssuer.buildCouponJWS(
+                Coupon.Type.DISCRETE,
+                10,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        //save coupon in db
+        AccountingCoupon accountingCoupon = new AccountingCoupon(couponString);
+        globalCouponsRegistry.save(accountingCoupon);
+        //first validation loads the coupon from the registry
+        CouponValidity couponValidity = issuedCouponsRegistryManagementService.isCouponValid(new Coupon(couponString));
+        assertEquals(CouponValidationStatus.VALID, couponValidity.getStatus());
+        long hits = couponValidityCache.getStatistics().get("couponValidityCache.hits");
+        //repeated validation is served from the cache
+        couponValidity = issuedCouponsRegistryManagementService.isCouponValid(new Coupon(couponString));
+        assertEquals(CouponValidationStatus.VALID, couponValidity.getStatus());
+        assertEquals(10, couponValidity.getRemainingUsages());
+        assertEquals(hits + 1, (long) couponValidityCache.getStatistics().get("couponValidityCache.hits"));
+        //consumption updates the cached state
+        assertEquals(CouponValidationStatus.VALID, issuedCouponsRegistryManagementService.consumeCoupon(new Coupon(couponString)));
+        assertEquals(9, issuedCouponsRegistryManagementService.isCouponValid(new Coupon(couponString)).getRemainingUsages());
+        //revocation saved in the registry invalidates the cached state
+        accountingCoupon = globalCouponsRegistry.findOne(accountingCoupon.getId());
+        accountingCoupon.setStatus(CouponValidationStatus.REVOKED_COUPON);
+        globalCouponsRegistry.save(accountingCoupon);
+        couponValidity = issuedCouponsRegistryManagementService.isCouponValid(new Coupon(couponString));
+        assertEquals(CouponValidationStatus.REVOKED_COUPON, couponValidity.getStatus());
+    }
+
     @Test
     public void validatePeriodicCouponSuccess() throws
             MalformedJWTException,
@@ -435,6 +819,32 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         assertEquals(0, couponValidity.getRemainingTime());
     }
 
+    @Test
+    public void periodicCouponExpiredByScheduler() throws
+            MalformedJWTException,
+            ValidationException,
+            InterruptedException {
+        //generate coupon
+        String couponString = CouponIssuer.buildCouponJWS(
+                Coupon.Type.PERIODIC,
+                1,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        //save activated coupon in db
+        AccountingCoupon accountingCoupon = new AccountingCoupon(couponString);
+        accountingCoupon.setFirstUseTimestamp(new Date().getTime());
+        globalCouponsRegistry.save(accountingCoupon);
+        //validity check doesn't change the registry
+        Thread.sleep(100);
+        assertEquals(CouponValidationStatus.CONSUMED_COUPON,
+                issuedCouponsRegistryManagementService.isCouponValid(new Coupon(couponString)).getStatus());
+        //expiry done by the scheduler
+        periodicCouponsExpiryScheduler.expireDueCoupons();
+        assertEquals(CouponValidationStatus.CONSUMED_COUPON, globalCouponsRegistry.findOne(accountingCoupon.getId()).getStatus());
+    }
+
     @Test
     public void validateDiscreteCouponFailConsumedCoupon() throws
             MalformedJWTException,
@@ -576,6 +986,34 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         assertEquals(CouponValidationStatus.VALID, accountingCoupon.getStatus());
     }
 
+    @Test
+    public void coreBTMClientReplayedSecurityRequestRejected() throws
+            SecurityHandlerException,
+            MalformedJWTException,
+            ValidationException {
+        // the mocked security handler sends the very same security request (token, challenge, timestamp) every time
+        CoreBTMClient coreBTMClient = new CoreBTMClient(serverAddress, mockedComponentSecurityHandler);
+        String couponString = CouponIssuer.buildCouponJWS(
+                Coupon.Type.DISCRETE,
+                2,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        assertTrue(coreBTMClient.registerCoupon(couponString));
+        // the replayed request no longer passes the policy evaluation (e.g. stale challenge), despite its token was accepted before
+        doReturn(new HashSet<>()).when(mockedComponentSecurityHandler).getSatisfiedPoliciesIdentifiers(Mockito.any(), Mockito.any());
+        String nextCouponString = CouponIssuer.buildCouponJWS(
+                Coupon.Type.DISCRETE,
+                2,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        assertFalse(coreBTMClient.registerCoupon(nextCouponString));
+        assertFalse(globalCouponsRegistry.exists(ParsedCoupon.parse(nextCouponString).getRegisteredCouponId()));
+    }
+
     @Test
     public void coreBTMClientRegisterCouponFailNotPassedAP() throws
             SecurityHandlerException {
@@ -676,6 +1114,62 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         assertEquals(CouponValidationStatus.VALID, couponValidity.getStatus());
     }
 
+    @Test
+    public void coreBTMClientAreCouponsValidSuccess() throws
+            SecurityHandlerException,
+            MalformedJWTException,
+            ValidationException,
+            InvalidArgumentsException,
+            WrongCredentialsException,
+            BTMException {
+        CoreBTMClient coreBTMClient = new CoreBTMClient(serverAddress, mockedComponentSecurityHandler);
+        //generate coupons using btm cert
+        String validCouponString = CouponIssuer.buildCouponJWS(
+                Coupon.Type.DISCRETE,
+                2,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        String revokedCouponString = CouponIssuer.buildCouponJWS(
+                Coupon.Type.PERIODIC,
+                1000,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        String notRegisteredCouponString = CouponIssuer.buildCouponJWS(
+                Coupon.Type.DISCRETE,
+                2,
+                SERVICE_ISSUER_NAME,
+                FEDERATION_ID,
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        globalCouponsRegistry.save(new AccountingCoupon(validCouponString));
+        AccountingCoupon revokedCoupon = new AccountingCoupon(revokedCouponString);
+        revokedCoupon.setStatus(CouponValidationStatus.REVOKED_COUPON);
+        globalCouponsRegistry.save(revokedCoupon);
+        //check coupons in one request
+        List<CouponValidity> couponValidities = coreBTMClient.areCouponsValid(
+                Arrays.asList(validCouponString, notRegisteredCouponString, revokedCouponString));
+        //check the validities are returned in the order of the request
+        assertEquals(3, couponValidities.size());
+        assertEquals(CouponValidationStatus.VALID, couponValidities.get(0).getStatus());
+        assertEquals(2, couponValidities.get(0).getRemainingUsages());
+        assertEquals(CouponValidationStatus.COUPON_NOT_REGISTERED, couponValidities.get(1).getStatus());
+        assertEquals(CouponValidationStatus.REVOKED_COUPON, couponValidities.get(2).getStatus());
+    }
+
+    @Test(expected = InvalidArgumentsException.class)
+    public void coreBTMClientAreCouponsValidFailMalformedCoupon() throws
+            SecurityHandlerException,
+            InvalidArgumentsException,
+            WrongCredentialsException,
+            BTMException {
+        CoreBTMClient coreBTMClient = new CoreBTMClient(serverAddress, mockedComponentSecurityHandler);
+        coreBTMClient.areCouponsValid(Collections.singletonList("malformed"));
+    }
+
     @Test(expected = WrongCredentialsException.class)
     public void coreBTMClientIsCouponValidFailNotPassedAP() throws
             SecurityHandlerException,
@@ -761,4 +1255,59 @@ public class CoreCouponEntityManagementUnitTests extends AbstractCoreBTMTestSuit
         assertNotNull(coreBTMClient.listCouponUsage(filter));
 
     }
+
+    @Test
+    public void couponUsageReportFilteredByFederationAndPaged() throws Exception {
+        //register coupons in two federations
+        List<String> couponStrings = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            couponStrings.add(CouponIssuer.buildCouponJWS(
+                    Coupon.Type.DISCRETE,
+                    10,
+                    SERVICE_ISSUER_NAME,
+                    FEDERATION_ID,
+                    serviceBtmKeyPair.getPublic(),
+                    serviceBtmKeyPair.getPrivate()));
+        }
+        String otherFederationCouponString = CouponIssuer.buildCouponJWS(
+                Coupon.Type.DISCRETE,
+                10,
+                SERVICE_ISSUER_NAME,
+                "otherFederationId",
+                serviceBtmKeyPair.getPublic(),
+                serviceBtmKeyPair.getPrivate());
+        couponStrings.add(otherFederationCouponString);
+        for (String couponString : couponStrings) {
+            globalCouponsRegistry.save(new AccountingCoupon(couponString));
+            //consume each coupon
+            assertEquals(CouponValidationStatus.VALID, issuedCouponsRegistryManagementService.consumeCoupon(new Coupon(couponString)));
+        }
+        FilterRequest filter = new FilterRequest();
+        filter.setPlatform(SERVICE_ISSUER_NAME);
+        //whole report of the issuer
+        assertEquals(4, issuedCouponsRegistryManagementService.getCouponUsage(filter, null, null).size());
+        //report of the single federation
+        filter.federationId = FEDERATION_ID;
+        assertEquals(3, issuedCouponsRegistryManagementService.getCouponUsage(filter, null, null).size());
+        //paged report
+        assertEquals(2, issuedCouponsRegistryManagementService.getCouponUsage(filter, 0, 2).size());
+        assertEquals(1, issuedCouponsRegistryManagementService.getCouponUsage(filter, 1, 2).size());
+        assertEquals(0, issuedCouponsRegistryManagementService.getCouponUsage(filter, 2, 2).size());
+        //report of the usage period
+        long actualTimeStamp = new Date().getTime();
+        filter.setBeginTimestamp(actualTimeStamp - 86400000);
+        filter.setEndTimestamp(actualTimeStamp + 86400000);
+        assertEquals(3, issuedCouponsRegistryManagementService.getCouponUsage(filter, null, null).size());
+        //no usages in the future
+        filter.setBeginTimestamp(actualTimeStamp + 86400000);
+        filter.setEndTimestamp(actualTimeStamp + 2 * 86400000);
+        assertEquals(0, issuedCouponsRegistryManagementService.getCouponUsage(filter, null, null).size());
+    }
+
+    @Test
+    public void coreRegistryIndexesCreatedAtStartup() {
+        Map<String, Boolean> report = coreRegistryIndexes.verify();
+        assertFalse(report.isEmpty());
+        assertFalse(report.containsValue(false));
+    }
 }
@@ -78,7 +78,11 @@ public class RevocationUnitTests extends
 
         // verify the user coupon is revoked
         assertTrue(response.isRevoked());
-        assertEquals(CouponValidationStatus.REVOKED_COUPON, globalCouponsRegistry.findOne(accountingCoupon.getId()).getStatus());
+        AccountingCoupon revokedCoupon = globalCouponsRegistry.findOne(accountingCoupon.getId());
+        assertEquals(CouponValidationStatus.REVOKED_COUPON, revokedCoupon.getStatus());
+        // revoked coupon expires after the configured retention
+        assertNotNull(revokedCoupon.getExpireAt());
+        assertTrue(revokedCoupon.getExpireAt().getTime() > System.currentTimeMillis());
     }
 
     @Test
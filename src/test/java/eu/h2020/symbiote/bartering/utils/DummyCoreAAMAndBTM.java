@@ -1,6 +1,7 @@
 package eu.h2020.symbiote.bartering.utils;
 
 
+import eu.h2020.symbiote.bartering.commons.CouponRegistrationResult;
 import eu.h2020.symbiote.security.commons.Certificate;
 import eu.h2020.symbiote.security.commons.Coupon;
 import eu.h2020.symbiote.security.commons.SecurityConstants;
@@ -17,6 +18,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -26,7 +28,9 @@ import java.io.StringWriter;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 
 /**
@@ -102,6 +106,17 @@ public class DummyCoreAAMAndBTM {
         return new ResponseEntity<>(null, httpHeaders1, registrationStatus);
     }
 
+    @PostMapping(path = BTM_PATH + SecurityConstants.BTM_REGISTER_COUPON + "/batch")
+    public ResponseEntity<List<CouponRegistrationResult>> registerCoupons(@RequestBody List<String> couponStrings) {
+        HttpHeaders httpHeaders1 = new HttpHeaders();
+        httpHeaders1.add("x-auth-response", "any");
+        if (!registrationStatus.equals(HttpStatus.OK))
+            return new ResponseEntity<>(null, httpHeaders1, registrationStatus);
+        List<CouponRegistrationResult> results = new ArrayList<>();
+        couponStrings.forEach(x -> results.add(CouponRegistrationResult.registered()));
+        return new ResponseEntity<>(results, httpHeaders1, HttpStatus.OK);
+    }
+
     @PostMapping(path = BTM_PATH + SecurityConstants.BTM_CONSUME_COUPON)
     public ResponseEntity<String> consumeCoupon(@RequestHeader(SecurityConstants.COUPON_HEADER_NAME) String couponString) {
         HttpHeaders httpHeaders1 = new HttpHeaders();
@@ -116,6 +131,15 @@ public class DummyCoreAAMAndBTM {
         return new ResponseEntity<>(new CouponValidity(couponValidationStatus, Coupon.Type.DISCRETE, 10, 0), httpHeaders1, HttpStatus.OK);
     }
 
+    @PostMapping(path = BTM_PATH + SecurityConstants.BTM_IS_COUPON_VALID + "/batch")
+    public ResponseEntity<List<CouponValidity>> areCouponsValid(@RequestBody List<String> couponStrings) {
+        HttpHeaders httpHeaders1 = new HttpHeaders();
+        httpHeaders1.add("x-auth-response", "any");
+        List<CouponValidity> couponValidities = new ArrayList<>();
+        couponStrings.forEach(x -> couponValidities.add(new CouponValidity(couponValidationStatus, Coupon.Type.DISCRETE, 10, 0)));
+        return new ResponseEntity<>(couponValidities, httpHeaders1, HttpStatus.OK);
+    }
+
 
 
 }